@@ -0,0 +1,160 @@
+/////////////////////////////////////////////////////////////////////////////
+//
+// Project ProjectForge Community Edition
+//         www.projectforge.org
+//
+// Copyright (C) 2001-2014 Kai Reinhard (k.reinhard@micromata.de)
+//
+// ProjectForge is dual-licensed.
+//
+// This community edition is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License as published
+// by the Free Software Foundation; version 3 of the License.
+//
+// This community edition is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+// Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with this program; if not, see http://www.gnu.org/licenses/.
+//
+/////////////////////////////////////////////////////////////////////////////
+
+package org.projectforge.excel;
+
+import java.lang.ref.SoftReference;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.projectforge.core.PropUtils;
+import org.projectforge.core.PropertyInfo;
+
+/**
+ * The accessors of all {@link PropertyInfo} annotated fields of a bean class, resolved once per class. Used by
+ * {@link ExcelExporter#addList(ExportSheet, List)} for avoiding reflection lookups for every row.
+ */
+public class BeanAccessorPlan
+{
+  /**
+   * Weak keys and soft values (the plans refer to their classes), so the plans don't prevent class loaders (e. g. of redeployed web
+   * applications) from being garbage collected.
+   */
+  private static final Map<Class< ? >, SoftReference<BeanAccessorPlan>> plans =
+      new WeakHashMap<Class< ? >, SoftReference<BeanAccessorPlan>>();
+
+  private final Class< ? > beanClass;
+
+  private final FieldAccessor[] accessors;
+
+  /**
+   * @param beanClass
+   * @return The cached plan of the given class.
+   */
+  public static BeanAccessorPlan getPlan(final Class< ? > beanClass)
+  {
+    synchronized (plans) {
+      final SoftReference<BeanAccessorPlan> ref = plans.get(beanClass);
+      final BeanAccessorPlan plan = ref != null ? ref.get() : null;
+      if (plan != null) {
+        return plan;
+      }
+    }
+    // Resolved outside of the lock, concurrent callers may resolve the same class twice.
+    final BeanAccessorPlan plan = new BeanAccessorPlan(beanClass);
+    synchronized (plans) {
+      plans.put(beanClass, new SoftReference<BeanAccessorPlan>(plan));
+    }
+    return plan;
+  }
+
+  /**
+   * Removes all cached plans, e. g. after reloading bean classes.
+   */
+  public static void clear()
+  {
+    synchronized (plans) {
+      plans.clear();
+    }
+  }
+
+  private BeanAccessorPlan(final Class< ? > beanClass)
+  {
+    this.beanClass = beanClass;
+    final Field[] fields = PropUtils.getPropertyInfoFields(beanClass);
+    final List<FieldAccessor> list = new ArrayList<FieldAccessor>(fields.length);
+    for (final Field field : fields) {
+      final PropertyInfo propInfo = field.getAnnotation(PropertyInfo.class);
+      if (propInfo == null) {
+        // Shouldn't occur.
+        continue;
+      }
+      field.setAccessible(true);
+      list.add(new FieldAccessor(field, propInfo));
+    }
+    this.accessors = list.toArray(new FieldAccessor[list.size()]);
+  }
+
+  public Class< ? > getBeanClass()
+  {
+    return beanClass;
+  }
+
+  /**
+   * @return The accessors of all fields annotated with {@link PropertyInfo} in the order of {@link PropUtils#getPropertyInfoFields(Class)}.
+   */
+  public FieldAccessor[] getAccessors()
+  {
+    return accessors;
+  }
+
+  /**
+   * Accessor of a single field (already accessible) with its {@link PropertyInfo}.
+   */
+  public static class FieldAccessor
+  {
+    private final Field field;
+
+    private final String name;
+
+    private final PropertyInfo propertyInfo;
+
+    private FieldAccessor(final Field field, final PropertyInfo propertyInfo)
+    {
+      this.field = field;
+      this.name = field.getName();
+      this.propertyInfo = propertyInfo;
+    }
+
+    /**
+     * @param bean
+     * @return The value of this field of the given bean.
+     */
+    public Object getValue(final Object bean)
+    {
+      try {
+        return field.get(bean);
+      } catch (final IllegalAccessException ex) {
+        throw new IllegalStateException("Can't access field '" + name + "' of " + field.getDeclaringClass().getName(), ex);
+      }
+    }
+
+    public Field getField()
+    {
+      return field;
+    }
+
+    public String getName()
+    {
+      return name;
+    }
+
+    public PropertyInfo getPropertyInfo()
+    {
+      return propertyInfo;
+    }
+  }
+}
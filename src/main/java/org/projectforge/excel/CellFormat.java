@@ -23,11 +23,19 @@
 
 package org.projectforge.excel;
 
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
 import org.apache.commons.lang.ObjectUtils;
 import org.apache.commons.lang.builder.HashCodeBuilder;
 import org.apache.poi.ss.usermodel.CellStyle;
 import org.apache.poi.ss.usermodel.Font;
 
+/**
+ * Format of cells. Formats are mutable until they are interned by a {@link CellFormatPool}: interned formats are immutable and shared
+ * (identical formats are the same instance), so they can be compared by identity. Use the with-methods for deriving (interned) formats
+ * from interned formats.
+ */
 public class CellFormat
 {
   private String dataFormat;
@@ -42,6 +50,15 @@ public class CellFormat
   
   private Boolean autoDatePrecision;
 
+  /** The pool this format is interned by, null for mutable formats. */
+  private CellFormatPool pool;
+
+  private int hash;
+
+  private volatile ConcurrentMap<Font, CellFormat> fontDerivations;
+
+  private volatile ConcurrentMap<Short, CellFormat> fillForegroundColorDerivations;
+
   /**
    * @param format Excel format string, e. g. "yyyy-MM-dd HH:mm", "#,##0", ...
    */
@@ -66,6 +83,7 @@ public class CellFormat
   
   public CellFormat setAutoDatePrecision(Boolean autoDatePrecision)
   {
+    checkMutable();
     this.autoDatePrecision = autoDatePrecision;
     return this;
   }
@@ -109,10 +127,26 @@ public class CellFormat
 
   public CellFormat setDataFormat(String dataFormat)
   {
+    checkMutable();
     this.dataFormat = dataFormat;
     return this;
   }
 
+  /**
+   * @param dataFormat
+   * @return This format if the data format is already equal, otherwise a copy with the given data format (interned if this format is
+   *         interned).
+   */
+  public CellFormat withDataFormat(final String dataFormat)
+  {
+    if (ObjectUtils.equals(this.dataFormat, dataFormat) == true) {
+      return this;
+    }
+    final CellFormat copy = copy();
+    copy.dataFormat = dataFormat;
+    return internCopy(copy);
+  }
+
   /** Ignored, if null. */
   public Short getAlignment()
   {
@@ -121,10 +155,25 @@ public class CellFormat
 
   public CellFormat setAlignment(Short alignment)
   {
+    checkMutable();
     this.alignment = alignment;
     return this;
   }
 
+  /**
+   * @param alignment
+   * @return This format if the alignment is already equal, otherwise a copy with the given alignment (interned if this format is interned).
+   */
+  public CellFormat withAlignment(final Short alignment)
+  {
+    if (ObjectUtils.equals(this.alignment, alignment) == true) {
+      return this;
+    }
+    final CellFormat copy = copy();
+    copy.alignment = alignment;
+    return internCopy(copy);
+  }
+
   /** Ignored, if null. */
   public Short getFillForegroundColor()
   {
@@ -133,10 +182,42 @@ public class CellFormat
 
   public CellFormat setFillForegroundColor(Short fillForegroundColor)
   {
+    checkMutable();
     this.fillForegroundColor = fillForegroundColor;
     return this;
   }
 
+  /**
+   * The derivations of interned formats are cached.
+   * @param fillForegroundColor
+   * @return This format if the color is already equal, otherwise a copy with the given color (interned if this format is interned).
+   */
+  public CellFormat withFillForegroundColor(final Short fillForegroundColor)
+  {
+    if (ObjectUtils.equals(this.fillForegroundColor, fillForegroundColor) == true) {
+      return this;
+    }
+    ConcurrentMap<Short, CellFormat> derivations = null;
+    if (pool != null && fillForegroundColor != null) {
+      derivations = fillForegroundColorDerivations;
+      if (derivations == null) {
+        derivations = new ConcurrentHashMap<Short, CellFormat>();
+        fillForegroundColorDerivations = derivations;
+      }
+      final CellFormat derived = derivations.get(fillForegroundColor);
+      if (derived != null) {
+        return derived;
+      }
+    }
+    final CellFormat copy = copy();
+    copy.fillForegroundColor = fillForegroundColor;
+    final CellFormat derived = internCopy(copy);
+    if (derivations != null) {
+      derivations.put(fillForegroundColor, derived);
+    }
+    return derived;
+  }
+
   /** Ignored, if null. */
   public Font getFont()
   {
@@ -145,10 +226,42 @@ public class CellFormat
 
   public CellFormat setFont(Font font)
   {
+    checkMutable();
     this.font = font;
     return this;
   }
 
+  /**
+   * The derivations of interned formats are cached.
+   * @param font
+   * @return This format if the font is already equal, otherwise a copy with the given font (interned if this format is interned).
+   */
+  public CellFormat withFont(final Font font)
+  {
+    if (ObjectUtils.equals(this.font, font) == true) {
+      return this;
+    }
+    ConcurrentMap<Font, CellFormat> derivations = null;
+    if (pool != null && font != null) {
+      derivations = fontDerivations;
+      if (derivations == null) {
+        derivations = new ConcurrentHashMap<Font, CellFormat>();
+        fontDerivations = derivations;
+      }
+      final CellFormat derived = derivations.get(font);
+      if (derived != null) {
+        return derived;
+      }
+    }
+    final CellFormat copy = copy();
+    copy.font = font;
+    final CellFormat derived = internCopy(copy);
+    if (derivations != null) {
+      derivations.put(font, derived);
+    }
+    return derived;
+  }
+
   public Boolean getWrapText()
   {
     return wrapText;
@@ -156,37 +269,117 @@ public class CellFormat
 
   public void setWrapText(Boolean wrapText)
   {
+    checkMutable();
     this.wrapText = wrapText;
   }
 
+  /**
+   * @param wrapText
+   * @return This format if wrap text is already equal, otherwise a copy with the given wrap text (interned if this format is interned).
+   */
+  public CellFormat withWrapText(final Boolean wrapText)
+  {
+    if (ObjectUtils.equals(this.wrapText, wrapText) == true) {
+      return this;
+    }
+    final CellFormat copy = copy();
+    copy.wrapText = wrapText;
+    return internCopy(copy);
+  }
+
+  /**
+   * @return true if this format is interned and therefore immutable.
+   * @see CellFormatPool#intern(CellFormat)
+   */
+  public boolean isInterned()
+  {
+    return pool != null;
+  }
+
+  /**
+   * @return The pool this format is interned by or null if this format is mutable.
+   */
+  public CellFormatPool getPool()
+  {
+    return pool;
+  }
+
+  /**
+   * @return An immutable copy of this format (with pre-calculated hash code) for the given pool.
+   */
+  CellFormat internalCopy(final CellFormatPool pool)
+  {
+    final CellFormat copy = copy();
+    copy.hash = copy.calculateHashCode();
+    copy.pool = pool;
+    return copy;
+  }
+
+  private CellFormat internCopy(final CellFormat copy)
+  {
+    if (pool == null) {
+      return copy;
+    }
+    return pool.intern(copy);
+  }
+
+  private void checkMutable()
+  {
+    if (pool != null) {
+      throw new UnsupportedOperationException("Interned cell formats are immutable, use the with-methods or a clone instead.");
+    }
+  }
+
   @Override
   public int hashCode()
   {
-    return new HashCodeBuilder().append(this.dataFormat).append(alignment).append(font).append(fillForegroundColor).append(wrapText).hashCode();
+    if (pool != null) {
+      return hash;
+    }
+    return calculateHashCode();
+  }
+
+  private int calculateHashCode()
+  {
+    return new HashCodeBuilder().append(this.dataFormat).append(alignment).append(font).append(fillForegroundColor).append(wrapText)
+        .append(autoDatePrecision).toHashCode();
   }
 
   @Override
   public boolean equals(Object obj)
   {
+    if (obj == this) {
+      return true;
+    }
     if (obj instanceof CellFormat) {
       final CellFormat other = (CellFormat) obj;
       if (ObjectUtils.equals(this.dataFormat, other.dataFormat) == false)
         return false;
-      if (this.alignment != other.alignment)
+      if (ObjectUtils.equals(this.alignment, other.alignment) == false)
         return false;
       if (ObjectUtils.equals(this.font, other.font) == false)
         return false;
-      if (this.fillForegroundColor != other.fillForegroundColor)
+      if (ObjectUtils.equals(this.fillForegroundColor, other.fillForegroundColor) == false)
         return false;
-      if (this.wrapText != other.wrapText)
+      if (ObjectUtils.equals(this.wrapText, other.wrapText) == false)
+        return false;
+      if (ObjectUtils.equals(this.autoDatePrecision, other.autoDatePrecision) == false)
         return false;
       return true;
     }
     return false;
   }
   
+  /**
+   * @return A mutable copy of this format.
+   */
   @Override
   protected CellFormat clone()
+  {
+    return copy();
+  }
+
+  private CellFormat copy()
   {
     final CellFormat clone = new CellFormat();
     clone.alignment = this.alignment;
@@ -0,0 +1,65 @@
+/////////////////////////////////////////////////////////////////////////////
+//
+// Project ProjectForge Community Edition
+//         www.projectforge.org
+//
+// Copyright (C) 2001-2014 Kai Reinhard (k.reinhard@micromata.de)
+//
+// ProjectForge is dual-licensed.
+//
+// This community edition is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License as published
+// by the Free Software Foundation; version 3 of the License.
+//
+// This community edition is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+// Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with this program; if not, see http://www.gnu.org/licenses/.
+//
+/////////////////////////////////////////////////////////////////////////////
+
+package org.projectforge.excel;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Interns cell formats: equal formats are represented by one immutable instance, so formats of the pool may be compared by identity. Every
+ * workbook has its own pool (cell formats refer to fonts of the workbook).
+ * @see ExportWorkbook#getCellFormatPool()
+ */
+public class CellFormatPool
+{
+  private final ConcurrentMap<CellFormat, CellFormat> formats = new ConcurrentHashMap<CellFormat, CellFormat>();
+
+  /**
+   * @param format
+   * @return The immutable instance of this pool equal to the given format (the given format itself if already interned by this pool).
+   */
+  public CellFormat intern(final CellFormat format)
+  {
+    if (format == null || format.getPool() == this) {
+      return format;
+    }
+    CellFormat interned = formats.get(format);
+    if (interned == null) {
+      final CellFormat copy = format.internalCopy(this);
+      interned = formats.putIfAbsent(copy, copy);
+      if (interned == null) {
+        interned = copy;
+      }
+    }
+    return interned;
+  }
+
+  /**
+   * @return The number of different formats of this pool.
+   */
+  public int size()
+  {
+    return formats.size();
+  }
+}
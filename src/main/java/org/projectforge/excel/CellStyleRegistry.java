@@ -0,0 +1,189 @@
+/////////////////////////////////////////////////////////////////////////////
+//
+// Project ProjectForge Community Edition
+//         www.projectforge.org
+//
+// Copyright (C) 2001-2014 Kai Reinhard (k.reinhard@micromata.de)
+//
+// ProjectForge is dual-licensed.
+//
+// This community edition is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License as published
+// by the Free Software Foundation; version 3 of the License.
+//
+// This community edition is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+// Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with this program; if not, see http://www.gnu.org/licenses/.
+//
+/////////////////////////////////////////////////////////////////////////////
+
+
+package org.projectforge.excel;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang.ObjectUtils;
+import org.apache.poi.ss.usermodel.CellStyle;
+
+/**
+ * The cell styles of a workbook by interned cell format, shared by the content providers of all sheets. So equal formats result in one
+ * cell style per workbook instead of one per sheet. <br/>
+ * The number of cell styles of a workbook is limited (about 4,000 for xls files). If the limit is reached, the existing style of the most
+ * similar format is re-used instead of creating a new one (the data format is kept if possible, then the font, the fill colour, the
+ * alignment and the wrapping).
+ * @see ExportWorkbook#getCellStyleRegistry()
+ * @see WorkbookFormat#getMaxCellStyles()
+ */
+public class CellStyleRegistry
+{
+  private static final org.projectforge.common.Logger log = org.projectforge.common.Logger.getLogger(CellStyleRegistry.class);
+
+  /**
+   * Creates the cell style of a format on demand.
+   */
+  public interface StyleFactory
+  {
+    /**
+     * Is called while holding the lock of the registry, i. e. the poi lock of the workbook.
+     * @param format The interned cell format.
+     * @return The new cell style.
+     */
+    CellStyle createCellStyle(CellFormat format);
+  }
+
+  private final ConcurrentMap<CellFormat, CellStyle> styles = new ConcurrentHashMap<CellFormat, CellStyle>();
+
+  /** The formats and styles created by the style factories (without the re-used ones), guarded by {@link #lock}. */
+  private final Map<CellFormat, CellStyle> createdStyles = new LinkedHashMap<CellFormat, CellStyle>();
+
+  private final Object lock;
+
+  private final int maxCellStyles;
+
+  private final AtomicLong hits = new AtomicLong();
+
+  private final AtomicLong fallbacks = new AtomicLong();
+
+  private boolean limitReached;
+
+  /**
+   * @param lock The lock to synchronize the creation of cell styles on.
+   * @param maxCellStyles The maximum number of cell styles to create.
+   */
+  public CellStyleRegistry(final Object lock, final int maxCellStyles)
+  {
+    this.lock = lock;
+    this.maxCellStyles = maxCellStyles;
+  }
+
+  /**
+   * @param format The interned cell format.
+   * @param factory Creates the cell style if no style of an equal format exists and the limit isn't reached.
+   * @return The cell style of the given format or of the most similar format if the limit of cell styles is reached.
+   */
+  public CellStyle getCellStyle(final CellFormat format, final StyleFactory factory)
+  {
+    CellStyle style = styles.get(format);
+    if (style != null) {
+      hits.incrementAndGet();
+      return style;
+    }
+    synchronized (lock) {
+      style = styles.get(format);
+      if (style != null) {
+        hits.incrementAndGet();
+        return style;
+      }
+      if (createdStyles.size() < maxCellStyles || createdStyles.isEmpty() == true) {
+        style = factory.createCellStyle(format);
+        createdStyles.put(format, style);
+      } else {
+        if (limitReached == false) {
+          limitReached = true;
+          log.warn("Maximum number of cell styles (" + maxCellStyles + ") reached, re-using the styles of similar formats.");
+        }
+        style = createdStyles.get(getMostSimilarFormat(format));
+        fallbacks.incrementAndGet();
+      }
+      styles.put(format, style);
+      return style;
+    }
+  }
+
+  private CellFormat getMostSimilarFormat(final CellFormat format)
+  {
+    CellFormat result = null;
+    int minDistance = Integer.MAX_VALUE;
+    for (final CellFormat other : createdStyles.keySet()) {
+      final int distance = getDistance(format, other);
+      if (distance < minDistance) {
+        minDistance = distance;
+        result = other;
+      }
+    }
+    return result;
+  }
+
+  private static int getDistance(final CellFormat f1, final CellFormat f2)
+  {
+    int distance = 0;
+    if (ObjectUtils.equals(f1.getDataFormat(), f2.getDataFormat()) == false) {
+      distance += 100;
+    }
+    if (ObjectUtils.equals(f1.getFont(), f2.getFont()) == false) {
+      distance += 4;
+    }
+    if (ObjectUtils.equals(f1.getFillForegroundColor(), f2.getFillForegroundColor()) == false) {
+      distance += 2;
+    }
+    if (ObjectUtils.equals(f1.getAlignment(), f2.getAlignment()) == false) {
+      distance += 1;
+    }
+    if (ObjectUtils.equals(f1.getWrapText(), f2.getWrapText()) == false) {
+      distance += 1;
+    }
+    return distance;
+  }
+
+  /**
+   * @return The number of cell styles created by this registry.
+   */
+  public int getNumberOfCreatedStyles()
+  {
+    synchronized (lock) {
+      return createdStyles.size();
+    }
+  }
+
+  /**
+   * @return The number of requests answered by an already existing cell style of an equal format.
+   */
+  public long getHits()
+  {
+    return hits.get();
+  }
+
+  /**
+   * @return The number of formats using the style of a similar format because the limit of cell styles was reached.
+   */
+  public long getFallbacks()
+  {
+    return fallbacks.get();
+  }
+
+  /**
+   * @return The maximum number of cell styles created by this registry.
+   */
+  public int getMaxCellStyles()
+  {
+    return maxCellStyles;
+  }
+}
@@ -0,0 +1,199 @@
+/////////////////////////////////////////////////////////////////////////////
+//
+// Project ProjectForge Community Edition
+//         www.projectforge.org
+//
+// Copyright (C) 2001-2014 Kai Reinhard (k.reinhard@micromata.de)
+//
+// ProjectForge is dual-licensed.
+//
+// This community edition is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License as published
+// by the Free Software Foundation; version 3 of the License.
+//
+// This community edition is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+// Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with this program; if not, see http://www.gnu.org/licenses/.
+//
+/////////////////////////////////////////////////////////////////////////////
+
+
+package org.projectforge.excel;
+
+import java.util.Calendar;
+import java.util.Date;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Estimates the number of characters of a cell value as displayed by Excel, used for the auto column width of
+ * {@link XlsContentProvider#setAutoColumnWidth(boolean)}. Dates and numbers are measured by their data format without formatting them, the
+ * data formats are parsed once.
+ */
+class CellWidthEstimator
+{
+  private static final ConcurrentMap<String, Pattern> PATTERNS = new ConcurrentHashMap<String, Pattern>();
+
+  private CellWidthEstimator()
+  {
+  }
+
+  /**
+   * @param value
+   * @param dataFormat The Excel data format of the cell, may be null.
+   * @return The estimated number of displayed characters, 0 for null values and formulas.
+   */
+  static int getLength(final Object value, final String dataFormat)
+  {
+    if (value == null || value instanceof Formula) {
+      return 0;
+    } else if (value instanceof String) {
+      return getTextLength((String) value);
+    } else if (value instanceof Date || value instanceof Calendar) {
+      return dataFormat != null ? getPattern(dataFormat).getDateLength() : XlsContentProvider.LENGTH_DATETIME;
+    } else if (value instanceof Number) {
+      if (dataFormat == null) {
+        return String.valueOf(value).length();
+      }
+      return getPattern(dataFormat).getNumberLength(((Number) value).doubleValue());
+    } else if (value instanceof Boolean) {
+      return XlsContentProvider.LENGTH_BOOLEAN;
+    }
+    return getTextLength(String.valueOf(value));
+  }
+
+  /**
+   * @return The length of the longest line.
+   */
+  private static int getTextLength(final String text)
+  {
+    int max = 0;
+    int start = 0;
+    int end;
+    while ((end = text.indexOf('\n', start)) >= 0) {
+      max = Math.max(max, end - start);
+      start = end + 1;
+    }
+    return Math.max(max, text.length() - start);
+  }
+
+  private static Pattern getPattern(final String dataFormat)
+  {
+    Pattern pattern = PATTERNS.get(dataFormat);
+    if (pattern == null) {
+      pattern = new Pattern(dataFormat);
+      PATTERNS.putIfAbsent(dataFormat, pattern);
+    }
+    return pattern;
+  }
+
+  /**
+   * The first section of a data format (positive values), e. g. "#,##0.00" of "#,##0.00;[Red]-#,##0.00".
+   */
+  private static class Pattern
+  {
+    /** Number of displayed characters without the digits of numbers (e. g. "DD.MM.YYYY hh:mm" for dates). */
+    private final int length;
+
+    private final boolean grouping;
+
+    private final int mandatoryDecimals;
+
+    private final int optionalDecimals;
+
+    private final boolean percent;
+
+    private Pattern(final String dataFormat)
+    {
+      int len = 0;
+      int mandatory = 0;
+      int optional = 0;
+      boolean decimals = false;
+      boolean group = false;
+      boolean inBrackets = false;
+      boolean inQuotes = false;
+      for (int i = 0; i < dataFormat.length(); i++) {
+        final char ch = dataFormat.charAt(i);
+        if (inQuotes == true) {
+          if (ch == '"') {
+            inQuotes = false;
+          } else {
+            ++len;
+          }
+        } else if (inBrackets == true) {
+          inBrackets = ch != ']';
+        } else if (ch == ';') {
+          break;
+        } else if (ch == '"') {
+          inQuotes = true;
+        } else if (ch == '[') {
+          inBrackets = true;
+        } else if (ch == '\\' || ch == '_' || ch == '*') {
+          // Escaped or padding character follows.
+          ++i;
+          ++len;
+        } else if (ch == '.') {
+          decimals = true;
+          ++len;
+        } else if (ch == ',') {
+          group = true;
+        } else if (decimals == true && ch == '0') {
+          ++mandatory;
+        } else if (decimals == true && ch == '#') {
+          ++optional;
+        } else if (ch != '0' && ch != '#' && ch != '?') {
+          ++len;
+        }
+      }
+      this.length = len;
+      this.grouping = group;
+      this.mandatoryDecimals = mandatory;
+      this.optionalDecimals = optional;
+      this.percent = dataFormat.indexOf('%') >= 0;
+    }
+
+    private int getDateLength()
+    {
+      // Fractions of seconds ("ss.000") are parsed as decimals.
+      return length + mandatoryDecimals + optionalDecimals;
+    }
+
+    private int getNumberLength(final double number)
+    {
+      final double value = Math.abs(percent == true ? number * 100 : number);
+      final double integral = Math.floor(value);
+      final int digits = integral < 1 ? 1 : (int) Math.log10(integral) + 1;
+      int result = length + digits;
+      if (grouping == true) {
+        result += (digits - 1) / 3;
+      }
+      if (number < 0) {
+        ++result;
+      }
+      final int decimals = Math.max(mandatoryDecimals, getFractionDigits(value - integral, mandatoryDecimals + optionalDecimals));
+      if (decimals == 0 && mandatoryDecimals + optionalDecimals > 0) {
+        // The decimal point of an integer value isn't displayed by optional decimals only ("#,###.##").
+        --result;
+      }
+      return result + decimals;
+    }
+
+    private static int getFractionDigits(final double fraction, final int maxDigits)
+    {
+      double rest = fraction;
+      double epsilon = 0.5 * Math.pow(10, -maxDigits);
+      int digits = 0;
+      while (digits < maxDigits && rest > epsilon) {
+        rest *= 10;
+        rest -= Math.floor(rest);
+        epsilon *= 10;
+        ++digits;
+      }
+      return digits;
+    }
+  }
+}
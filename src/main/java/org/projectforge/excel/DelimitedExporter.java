@@ -0,0 +1,633 @@
+/////////////////////////////////////////////////////////////////////////////
+//
+// Project ProjectForge Community Edition
+//         www.projectforge.org
+//
+// Copyright (C) 2001-2014 Kai Reinhard (k.reinhard@micromata.de)
+//
+// ProjectForge is dual-licensed.
+//
+// This community edition is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License as published
+// by the Free Software Foundation; version 3 of the License.
+//
+// This community edition is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+// Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with this program; if not, see http://www.gnu.org/licenses/.
+//
+/////////////////////////////////////////////////////////////////////////////
+
+package org.projectforge.excel;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.text.FieldPosition;
+import java.text.Format;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import org.projectforge.common.DateFormatType;
+
+/**
+ * Exports rows as delimited text (CSV or TSV) directly to a writer or channel without building a workbook. Uses the same column definitions,
+ * property names and data formats (Excel format strings) as the Excel export, the formats are converted to {@link SimpleDateFormat} and
+ * {@link DecimalFormat}. Values without format are written as they are (numbers in plain notation without grouping). The line buffers are
+ * re-used for all rows. <br/>
+ * Example:
+ * 
+ * <pre>
+ * final DelimitedExporter exporter = new DelimitedExporter(writer, DelimitedExporter.CSV);
+ * exporter.putFormat(&quot;amount&quot;, &quot;#,##0.00&quot;);
+ * exporter.setColumns(columns); // Writes the head line.
+ * exporter.addRows(list);
+ * exporter.flush();
+ * </pre>
+ */
+public class DelimitedExporter
+{
+  private static final org.projectforge.common.Logger log = org.projectforge.common.Logger.getLogger(DelimitedExporter.class);
+
+  /** Delimiter of comma separated values. */
+  public static final char CSV = ',';
+
+  /** Delimiter of tab separated values. */
+  public static final char TSV = '\t';
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final ExportContext exportContext;
+
+  private final Writer writer;
+
+  private final char delimiter;
+
+  private String lineSeparator = "\r\n";
+
+  /** Formats by property name. */
+  private final Map<String, String> formatMap = new HashMap<String, String>();
+
+  /** Formats by column name (registered by {@link #putFormat(ExportColumn, String)}). */
+  private final Map<String, String> columnFormatMap = new HashMap<String, String>();
+
+  /** Formats by value class. */
+  private final Map<Class< ? >, String> typeFormatMap = new HashMap<Class< ? >, String>();
+
+  /** Type formats resolved per value class (including super classes). */
+  private final Map<Class< ? >, Format> typeFormats = new HashMap<Class< ? >, Format>();
+
+  private final Map<String, Format> dateFormats = new HashMap<String, Format>();
+
+  private final Map<String, Format> numberFormats = new HashMap<String, Format>();
+
+  private PropertyPath[] propertyPaths;
+
+  /** Formats of the properties by column index, resolved on first use. */
+  private Format[][] columnFormats;
+
+  private final StringBuilder line = new StringBuilder(256);
+
+  private final StringBuffer formatBuffer = new StringBuffer(32);
+
+  private final FieldPosition fieldPosition = new FieldPosition(0);
+
+  private char[] chars = new char[256];
+
+  public DelimitedExporter(final Writer writer, final char delimiter)
+  {
+    this(ExportConfig.getInstance().getDefaultExportContext(), writer, delimiter);
+  }
+
+  /**
+   * The channel isn't closed by this exporter.
+   * @param channel
+   * @param charset
+   * @param delimiter
+   */
+  public DelimitedExporter(final WritableByteChannel channel, final Charset charset, final char delimiter)
+  {
+    this(ExportConfig.getInstance().getDefaultExportContext(), Channels.newWriter(channel, charset.newEncoder(), BUFFER_SIZE), delimiter);
+  }
+
+  /**
+   * @param exportContext Used for the default date formats and the locale of the number formats.
+   * @param writer
+   * @param delimiter
+   */
+  public DelimitedExporter(final ExportContext exportContext, final Writer writer, final char delimiter)
+  {
+    this.exportContext = exportContext;
+    this.writer = writer;
+    this.delimiter = delimiter;
+    typeFormatMap.put(Date.class, ExcelDateFormats.getExcelFormatString(exportContext, DateFormatType.DATE_TIME_MINUTES));
+    typeFormatMap.put(java.sql.Date.class, ExcelDateFormats.getExcelFormatString(exportContext, DateFormatType.DATE));
+    typeFormatMap.put(java.sql.Timestamp.class, ExcelDateFormats.getExcelFormatString(exportContext, DateFormatType.DATE_TIME_MILLIS));
+  }
+
+  /**
+   * @param lineSeparator The default is "\r\n" (RFC 4180).
+   * @return this for chaining.
+   */
+  public DelimitedExporter setLineSeparator(final String lineSeparator)
+  {
+    this.lineSeparator = lineSeparator;
+    return this;
+  }
+
+  /**
+   * @param obj Property name or class of the matching values.
+   * @param dataFormat Excel data format, e. g. "#,##0.00" or "MM/dd/yyyy HH:mm".
+   * @return this for chaining.
+   * @see ContentProvider#putFormat(Object, String)
+   */
+  public DelimitedExporter putFormat(final Object obj, final String dataFormat)
+  {
+    if (obj instanceof Class< ? >) {
+      typeFormatMap.put((Class< ? >) obj, dataFormat);
+    } else if (obj instanceof ExportColumn) {
+      return putFormat((ExportColumn) obj, dataFormat);
+    } else if (obj instanceof Enum< ? >) {
+      formatMap.put(((Enum< ? >) obj).name(), dataFormat);
+    } else {
+      formatMap.put(String.valueOf(obj), dataFormat);
+    }
+    clearFormatCache();
+    return this;
+  }
+
+  /**
+   * @param col
+   * @param dataFormat
+   * @return this for chaining.
+   * @see ContentProvider#putFormat(ExportColumn, String)
+   */
+  public DelimitedExporter putFormat(final ExportColumn col, final String dataFormat)
+  {
+    if (columnFormatMap.containsKey(col.getName()) == false) {
+      columnFormatMap.put(col.getName(), dataFormat);
+      clearFormatCache();
+    }
+    return this;
+  }
+
+  /**
+   * Uses the data formats put to the given content provider, so the definitions of an Excel export may be re-used.
+   * @param contentProvider
+   * @return this for chaining.
+   */
+  public DelimitedExporter putFormats(final XlsContentProvider contentProvider)
+  {
+    for (final Map.Entry<Object, CellFormat> entry : contentProvider.getFormats().entrySet()) {
+      final String dataFormat = entry.getValue().getDataFormat();
+      if (dataFormat != null) {
+        putFormat(entry.getKey(), dataFormat);
+      }
+    }
+    return this;
+  }
+
+  /**
+   * Sets the property names of the columns and writes the head line with the titles of the given columns.
+   * @param columns
+   * @return this for chaining.
+   * @throws IOException
+   */
+  public DelimitedExporter setColumns(final ExportColumn... columns) throws IOException
+  {
+    final String[] names = new String[columns.length];
+    final Object[] titles = new Object[columns.length];
+    for (int i = 0; i < columns.length; i++) {
+      names[i] = columns[i].getName();
+      titles[i] = columns[i].getTitle();
+    }
+    setPropertyNames(names);
+    return addRow(titles);
+  }
+
+  /**
+   * @param columns
+   * @return this for chaining.
+   * @throws IOException
+   * @see #setColumns(ExportColumn...)
+   */
+  public DelimitedExporter setColumns(final Collection<ExportColumn> columns) throws IOException
+  {
+    return setColumns(columns.toArray(new ExportColumn[columns.size()]));
+  }
+
+  /**
+   * For filling the lines via beans or maps.
+   * @param propertyNames
+   * @return this for chaining.
+   * @see ExportSheet#setPropertyNames(String[])
+   */
+  public DelimitedExporter setPropertyNames(final String... propertyNames)
+  {
+    this.propertyPaths = PropertyPath.compile(propertyNames);
+    this.columnFormats = null;
+    return this;
+  }
+
+  /**
+   * Writes a line with the values of the given bean or map (property names are used as keys).
+   * @param rowBean
+   * @return this for chaining.
+   * @throws IOException
+   * @see #setPropertyNames(String...)
+   */
+  public DelimitedExporter addRow(final Object rowBean) throws IOException
+  {
+    if (propertyPaths == null) {
+      throw new IllegalStateException("Property names or columns not set.");
+    }
+    line.setLength(0);
+    final Map< ? , ? > map = rowBean instanceof Map< ? , ? > ? (Map< ? , ? >) rowBean : null;
+    for (int col = 0; col < propertyPaths.length; col++) {
+      final PropertyPath propertyPath = propertyPaths[col];
+      Object value;
+      if (map != null) {
+        value = propertyPath.getPath() == null ? null : map.get(propertyPath.getPath());
+      } else if (propertyPath.isEmptyCell() == true) {
+        value = null;
+      } else {
+        try {
+          value = propertyPath.getValue(rowBean);
+        } catch (final RuntimeException ex) {
+          log.info("Can't load property " + propertyPath + " from bean " + rowBean + " (" + ex.getMessage() + ")");
+          value = "N/A";
+        }
+      }
+      appendValue(col, value, getColumnFormats(col));
+    }
+    writeLine();
+    return this;
+  }
+
+  /**
+   * Writes a line with the given values (formatted by the formats of their classes).
+   * @param values
+   * @return this for chaining.
+   * @throws IOException
+   */
+  public DelimitedExporter addRow(final Object... values) throws IOException
+  {
+    line.setLength(0);
+    for (int col = 0; col < values.length; col++) {
+      appendValue(col, values[col], null);
+    }
+    writeLine();
+    return this;
+  }
+
+  public DelimitedExporter addRows(final Collection< ? > rowBeans) throws IOException
+  {
+    for (final Object rowBean : rowBeans) {
+      addRow(rowBean);
+    }
+    return this;
+  }
+
+  /**
+   * Flushes the writer (which isn't closed by this exporter).
+   * @throws IOException
+   */
+  public void flush() throws IOException
+  {
+    writer.flush();
+  }
+
+  /**
+   * @param col
+   * @param value
+   * @param formats The date and the number format of the column, may be null.
+   */
+  private void appendValue(final int col, Object value, final Format[] formats)
+  {
+    if (col > 0) {
+      line.append(delimiter);
+    }
+    if (value == null) {
+      return;
+    }
+    if (value instanceof Calendar) {
+      value = ((Calendar) value).getTime();
+    }
+    final boolean date = value instanceof Date;
+    Format format = null;
+    if (formats != null) {
+      format = formats[date == true ? 0 : 1];
+    }
+    if (format == null && (date == true || value instanceof Number)) {
+      format = getTypeFormat(value.getClass());
+    }
+    formatBuffer.setLength(0);
+    if (format != null && (date == true || value instanceof Number)) {
+      format.format(value, formatBuffer, fieldPosition);
+    } else if (value instanceof Integer || value instanceof Long) {
+      formatBuffer.append(((Number) value).longValue());
+    } else if (value instanceof BigDecimal) {
+      formatBuffer.append(((BigDecimal) value).toPlainString());
+    } else if ((value instanceof Double || value instanceof Float) && isFinite((Number) value) == true) {
+      // Avoid the scientific notation of Double.toString(), e. g. 1.0E7.
+      final BigDecimal decimal = value instanceof Double ? BigDecimal.valueOf((Double) value) : new BigDecimal(value.toString());
+      formatBuffer.append(decimal.toPlainString());
+    } else if (value instanceof Formula) {
+      formatBuffer.append('=').append(((Formula) value).getExpr());
+    } else {
+      formatBuffer.append(value);
+    }
+    appendEscaped(formatBuffer);
+  }
+
+  private static boolean isFinite(final Number value)
+  {
+    final double d = value.doubleValue();
+    return Double.isNaN(d) == false && Double.isInfinite(d) == false;
+  }
+
+  /**
+   * Quotes the value if it contains the delimiter, quotes or line breaks.
+   */
+  private void appendEscaped(final CharSequence value)
+  {
+    final int length = value.length();
+    boolean quote = false;
+    for (int i = 0; i < length; i++) {
+      final char ch = value.charAt(i);
+      if (ch == delimiter || ch == '"' || ch == '\n' || ch == '\r') {
+        quote = true;
+        break;
+      }
+    }
+    if (quote == false) {
+      line.append(value);
+      return;
+    }
+    line.append('"');
+    for (int i = 0; i < length; i++) {
+      final char ch = value.charAt(i);
+      if (ch == '"') {
+        line.append('"');
+      }
+      line.append(ch);
+    }
+    line.append('"');
+  }
+
+  private void writeLine() throws IOException
+  {
+    line.append(lineSeparator);
+    final int length = line.length();
+    if (chars.length < length) {
+      chars = new char[Math.max(length, chars.length * 2)];
+    }
+    line.getChars(0, length, chars, 0);
+    writer.write(chars, 0, length);
+  }
+
+  /**
+   * @param col
+   * @return The date and the number format of the given column (resolved once per column).
+   */
+  private Format[] getColumnFormats(final int col)
+  {
+    if (columnFormats == null) {
+      columnFormats = new Format[propertyPaths.length][];
+    }
+    Format[] formats = columnFormats[col];
+    if (formats == null) {
+      final String property = propertyPaths[col].getPath();
+      String dataFormat = property != null ? formatMap.get(property) : null;
+      if (dataFormat == null && property != null) {
+        dataFormat = columnFormatMap.get(property);
+      }
+      formats = new Format[] { getDateFormat(dataFormat), getNumberFormat(dataFormat)};
+      columnFormats[col] = formats;
+    }
+    return formats;
+  }
+
+  /**
+   * @param clazz
+   * @return The format of the given class or of its nearest super class.
+   */
+  private Format getTypeFormat(final Class< ? > clazz)
+  {
+    if (typeFormats.containsKey(clazz) == true) {
+      return typeFormats.get(clazz);
+    }
+    String dataFormat = null;
+    for (Class< ? > cls = clazz; cls != null && dataFormat == null; cls = cls.getSuperclass()) {
+      dataFormat = typeFormatMap.get(cls);
+    }
+    final Format format = Date.class.isAssignableFrom(clazz) == true ? getDateFormat(dataFormat) : getNumberFormat(dataFormat);
+    typeFormats.put(clazz, format);
+    return format;
+  }
+
+  private void clearFormatCache()
+  {
+    columnFormats = null;
+    typeFormats.clear();
+  }
+
+  private Format getDateFormat(final String dataFormat)
+  {
+    if (dataFormat == null || isDateFormat(dataFormat) == false) {
+      return null;
+    }
+    Format format = dateFormats.get(dataFormat);
+    if (format == null) {
+      format = new SimpleDateFormat(toDatePattern(dataFormat), getLocale());
+      dateFormats.put(dataFormat, format);
+    }
+    return format;
+  }
+
+  private Format getNumberFormat(final String dataFormat)
+  {
+    if (dataFormat == null || isDateFormat(dataFormat) == true || dataFormat.indexOf('0') < 0 && dataFormat.indexOf('#') < 0) {
+      return null;
+    }
+    Format format = numberFormats.get(dataFormat);
+    if (format == null) {
+      format = new DecimalFormat(toNumberPattern(dataFormat), DecimalFormatSymbols.getInstance(getLocale()));
+      numberFormats.put(dataFormat, format);
+    }
+    return format;
+  }
+
+  private Locale getLocale()
+  {
+    final Locale locale = exportContext.getLocale();
+    return locale != null ? locale : Locale.getDefault();
+  }
+
+  /**
+   * @param dataFormat
+   * @return true if the given Excel format contains date or time place holders (outside of quoted text).
+   */
+  static boolean isDateFormat(final String dataFormat)
+  {
+    boolean quoted = false;
+    for (int i = 0; i < dataFormat.length(); i++) {
+      final char ch = dataFormat.charAt(i);
+      if (ch == '"') {
+        quoted = !quoted;
+      } else if (quoted == false && "yYdDhHsS".indexOf(ch) >= 0) {
+        return true;
+      } else if (ch == '[' || ch == '\\') {
+        // Skip color codes and escaped characters.
+        i = ch == '[' ? Math.max(i, dataFormat.indexOf(']', i)) : i + 1;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Converts an Excel date format to a {@link SimpleDateFormat} pattern, e. g. "DD/MM/YYYY hh:mm:ss.000" to "dd/MM/yyyy HH:mm:ss.SSS". The
+   * letter m is used for minutes if it follows hours or precedes seconds, otherwise for months.
+   * @param dataFormat
+   */
+  static String toDatePattern(final String dataFormat)
+  {
+    final boolean amPm = dataFormat.toUpperCase().contains("AM/PM");
+    final String format = dataFormat.replace("AM/PM", "a").replace("am/pm", "a");
+    final StringBuilder sb = new StringBuilder(format.length() + 8);
+    char last = 0; // last date/time place holder.
+    for (int i = 0; i < format.length(); i++) {
+      final char ch = format.charAt(i);
+      if (ch == '"') {
+        final int end = format.indexOf('"', i + 1);
+        appendQuoted(sb, format.substring(i + 1, end < 0 ? format.length() : end));
+        i = end < 0 ? format.length() : end;
+      } else if (ch == '\\' && i + 1 < format.length()) {
+        appendQuoted(sb, String.valueOf(format.charAt(++i)));
+      } else if (ch == '[') {
+        // Skip color codes and elapsed time markers.
+        final int end = format.indexOf(']', i);
+        i = end < 0 ? format.length() : end;
+      } else if (ch == 'y' || ch == 'Y') {
+        sb.append('y');
+        last = 'y';
+      } else if (ch == 'd' || ch == 'D') {
+        final int count = countRepeated(format, i);
+        sb.append(count >= 4 ? "EEEE" : count == 3 ? "EEE" : count == 2 ? "dd" : "d");
+        i += count - 1;
+        last = 'd';
+      } else if (ch == 'h' || ch == 'H') {
+        sb.append(amPm == true ? 'h' : 'H');
+        last = 'h';
+      } else if (ch == 'm' || ch == 'M') {
+        final int count = countRepeated(format, i);
+        final boolean minutes = last == 'h' || nextPlaceHolder(format, i + count) == 's';
+        for (int j = 0; j < count; j++) {
+          sb.append(minutes == true ? 'm' : 'M');
+        }
+        i += count - 1;
+        last = minutes == true ? 'm' : 'M';
+      } else if (ch == 's' || ch == 'S') {
+        sb.append('s');
+        last = 's';
+      } else if ((ch == '0' || ch == 'f') && last == 's') {
+        // Fractions of seconds ("ss.000" or "ss.fff").
+        sb.append('S');
+      } else if (ch == 'a') {
+        sb.append('a');
+      } else if (Character.isLetter(ch) == true) {
+        appendQuoted(sb, String.valueOf(ch));
+      } else if (ch == '\'') {
+        sb.append("''");
+      } else {
+        sb.append(ch);
+      }
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Converts an Excel number format to a {@link DecimalFormat} pattern: color codes and quotes are removed. Only the sections for positive
+   * and negative numbers are kept, {@link DecimalFormat} doesn't support the zero and text sections of Excel, e. g. "0;-0;\"zero\"".
+   * @param dataFormat
+   */
+  static String toNumberPattern(final String dataFormat)
+  {
+    final StringBuilder sb = new StringBuilder(dataFormat.length());
+    boolean negativeSection = false;
+    for (int i = 0; i < dataFormat.length(); i++) {
+      final char ch = dataFormat.charAt(i);
+      if (ch == ';') {
+        if (negativeSection == true) {
+          break;
+        }
+        negativeSection = true;
+        sb.append(ch);
+      } else if (ch == '[') {
+        final int end = dataFormat.indexOf(']', i);
+        i = end < 0 ? dataFormat.length() : end;
+      } else if (ch == '"') {
+        final int end = dataFormat.indexOf('"', i + 1);
+        appendQuoted(sb, dataFormat.substring(i + 1, end < 0 ? dataFormat.length() : end));
+        i = end < 0 ? dataFormat.length() : end;
+      } else if (ch == '\\' && i + 1 < dataFormat.length()) {
+        appendQuoted(sb, String.valueOf(dataFormat.charAt(++i)));
+      } else if (ch == '_' || ch == '*') {
+        // Skip padding instructions (and the padding character).
+        ++i;
+      } else {
+        sb.append(ch);
+      }
+    }
+    if (sb.length() > 0 && sb.charAt(sb.length() - 1) == ';') {
+      // Empty negative section.
+      sb.setLength(sb.length() - 1);
+    }
+    return sb.toString();
+  }
+
+  private static void appendQuoted(final StringBuilder sb, final String text)
+  {
+    if (text.length() == 0) {
+      return;
+    }
+    sb.append('\'').append(text.replace("'", "''")).append('\'');
+  }
+
+  private static int countRepeated(final String format, final int pos)
+  {
+    final char ch = Character.toLowerCase(format.charAt(pos));
+    int i = pos + 1;
+    while (i < format.length() && Character.toLowerCase(format.charAt(i)) == ch) {
+      ++i;
+    }
+    return i - pos;
+  }
+
+  /**
+   * @return The next date/time place holder (lower case) after the given position or 0 if not found.
+   */
+  private static char nextPlaceHolder(final String format, final int pos)
+  {
+    for (int i = pos; i < format.length(); i++) {
+      final char ch = Character.toLowerCase(format.charAt(i));
+      if ("ydhms".indexOf(ch) >= 0) {
+        return ch;
+      }
+    }
+    return 0;
+  }
+}
@@ -24,13 +24,21 @@
 package org.projectforge.excel;
 
 import java.lang.reflect.Field;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.projectforge.common.BeanHelper;
-import org.projectforge.core.PropUtils;
 import org.projectforge.core.PropertyInfo;
 import org.projectforge.core.PropertyType;
+import org.projectforge.excel.BeanAccessorPlan.FieldAccessor;
 
 public class ExcelExporter
 {
@@ -40,10 +48,50 @@ public class ExcelExporter
 
   private int defaultColWidth = 20;
 
+  /** Number of list entries converted by one task in parallel mode. */
+  static final int PARALLEL_CHUNK_SIZE = 1000;
+
+  private final boolean addMappingOverridden;
+
+  private int parallelThreshold = 0;
+
+  private ExecutorService executor;
+
+  private ExportPlanCache exportPlanCache;
+
   public ExcelExporter(final String filename)
   {
-    this.workBook = new ExportWorkbook();
+    this(filename, WorkbookFormat.XLS);
+  }
+
+  /**
+   * @param filename
+   * @param format The format of the workbook to export (xls, xlsx or streamed xlsx).
+   */
+  public ExcelExporter(final String filename, final WorkbookFormat format)
+  {
+    this(filename, format, ExportSettings.getDefault());
+  }
+
+  /**
+   * @param filename
+   * @param format The format of the workbook to export (xls, xlsx or streamed xlsx).
+   * @param settings The configuration of this export (locale, translations and paper size).
+   */
+  public ExcelExporter(final String filename, final WorkbookFormat format, final ExportSettings settings)
+  {
+    this.workBook = new ExportWorkbook(format, 0, settings);
     this.workBook.setFilename(filename);
+    this.addMappingOverridden = isAddMappingOverridden();
+  }
+
+  private boolean isAddMappingOverridden()
+  {
+    try {
+      return getClass().getMethod("addMapping", PropertyMapping.class, Object.class, Field.class).getDeclaringClass() != ExcelExporter.class;
+    } catch (final NoSuchMethodException ex) {
+      return false;
+    }
   }
 
   public String getFilename()
@@ -51,6 +99,19 @@ public class ExcelExporter
     return this.workBook.getFilename();
   }
 
+  /**
+   * Registers the listener at the workbook of this exporter. Additionally to the phases of the workbook the building of the columns
+   * ({@link ExportPhase#PLAN}) and the filling of the rows ({@link ExportPhase#EXTRACTION}) are reported per added list.
+   * @param listener
+   * @return this for chaining.
+   * @see ExportWorkbook#setListener(ExportListener)
+   */
+  public ExcelExporter setListener(final ExportListener listener)
+  {
+    this.workBook.setListener(listener);
+    return this;
+  }
+
   public ExportSheet addSheet(final ContentProvider sheetProvider, final String sheetTitle)
   {
     final ExportSheet sheet = workBook.addSheet(sheetTitle);
@@ -66,41 +127,217 @@ public class ExcelExporter
       log.info("Nothing to export for sheet '" + sheet.getName() + "'.");
       return sheet;
     }
+    final ExportListener listener = workBook.getListener();
+    final long start = listener != null ? System.nanoTime() : 0;
+    final FieldAccessor[] accessors = setColumns(sheet, list.get(0).getClass());
+    final long extractionStart = phaseFinished(listener, ExportPhase.PLAN, start);
+    if (parallelThreshold > 0 && list.size() >= parallelThreshold) {
+      addInParallel(sheet, list.iterator(), accessors);
+    } else {
+      add(sheet, list.iterator(), accessors);
+    }
+    phaseFinished(listener, ExportPhase.EXTRACTION, extractionStart);
+    return sheet;
+  }
+
+  /**
+   * Adds the entries of the given iterator to the sheet. The entries are pulled one after another, so combined with a streaming workbook
+   * only a window of the source objects is held in memory (in parallel mode at most two chunks of entries per processor). The columns are
+   * defined by the given class instead of by the first entry, the head row is added even if the iterator has no entries.
+   * @param sheet
+   * @param classType The class (or super class) of the entries.
+   * @param iterator
+   * @return the given sheet.
+   * @see #setParallelThreshold(int)
+   */
+  public <T> ExportSheet addStream(final ExportSheet sheet, final Class<T> classType, final Iterator< ? extends T> iterator)
+  {
+    final ExportListener listener = workBook.getListener();
+    final long start = listener != null ? System.nanoTime() : 0;
+    final FieldAccessor[] accessors = setColumns(sheet, classType);
+    final long extractionStart = phaseFinished(listener, ExportPhase.PLAN, start);
+    if (parallelThreshold > 0) {
+      addInParallel(sheet, iterator, accessors);
+    } else {
+      add(sheet, iterator, accessors);
+    }
+    phaseFinished(listener, ExportPhase.EXTRACTION, extractionStart);
+    return sheet;
+  }
+
+  /**
+   * @return The current time in nanoseconds (the start of the next phase) or 0 if there is no listener.
+   */
+  private static long phaseFinished(final ExportListener listener, final ExportPhase phase, final long start)
+  {
+    if (listener == null) {
+      return 0;
+    }
+    final long now = System.nanoTime();
+    listener.phaseFinished(phase, now - start);
+    return now;
+  }
+
+  /**
+   * @param sheet
+   * @param classType The class (or super class) of the entries.
+   * @param iterable
+   * @return the given sheet.
+   * @see #addStream(ExportSheet, Class, Iterator)
+   */
+  public <T> ExportSheet addStream(final ExportSheet sheet, final Class<T> classType, final Iterable< ? extends T> iterable)
+  {
+    return addStream(sheet, classType, iterable.iterator());
+  }
+
+  /**
+   * Adds the head row with the columns of the given class.
+   * @return The accessors of the fields of the given class.
+   */
+  private FieldAccessor[] setColumns(final ExportSheet sheet, final Class< ? > classType)
+  {
     final ContentProvider sheetProvider = sheet.getContentProvider();
     sheet.createFreezePane(0, 1);
 
-    final Class< ? > classType = list.get(0).getClass();
-    final Field[] fields = PropUtils.getPropertyInfoFields(classType);
-    List<ExportColumn> cols = new LinkedList<ExportColumn>();
-    for (final Field field : fields) {
-      final PropertyInfo propInfo = field.getAnnotation(PropertyInfo.class);
-      if (propInfo == null) {
-        // Shouldn't occur.
-        continue;
+    if (exportPlanCache != null && sheetProvider instanceof XlsContentProvider) {
+      final XlsContentProvider xlsProvider = (XlsContentProvider) sheetProvider;
+      final ExportSettings settings = workBook.getSettings();
+      final ExportPlan cachedPlan = exportPlanCache.get(classType, settings, getClass(), defaultColWidth);
+      if (cachedPlan != null) {
+        cachedPlan.replay(xlsProvider);
+        sheet.setColumns(cachedPlan.getColumns());
+        return cachedPlan.getAccessors();
+      }
+      final Map<Object, CellFormat> formatsBefore = ExportPlan.getFormats(xlsProvider);
+      final FieldAccessor[] accessors = BeanAccessorPlan.getPlan(classType).getAccessors();
+      final List<ExportColumn> columns = createColumns(sheetProvider, accessors);
+      final ExportPlan exportPlan = ExportPlan.create(accessors, columns, formatsBefore, ExportPlan.getFormats(xlsProvider));
+      if (exportPlan != null) {
+        exportPlanCache.put(classType, settings, getClass(), defaultColWidth, exportPlan);
       }
-      final ExportColumn exportColumn = new I18nExportColumn(field.getName(), propInfo.i18nKey(), defaultColWidth);
+      // column property names
+      sheet.setColumns(columns);
+      return accessors;
+    }
+    final BeanAccessorPlan plan = BeanAccessorPlan.getPlan(classType);
+    final FieldAccessor[] accessors = plan.getAccessors();
+    // column property names
+    sheet.setColumns(createColumns(sheetProvider, accessors));
+    return accessors;
+  }
+
+  private List<ExportColumn> createColumns(final ContentProvider sheetProvider, final FieldAccessor[] accessors)
+  {
+    List<ExportColumn> cols = new LinkedList<ExportColumn>();
+    for (final FieldAccessor accessor : accessors) {
+      final ExportColumn exportColumn = new I18nExportColumn(workBook.getSettings().getExportContext(), accessor.getName(),
+          accessor.getPropertyInfo().i18nKey(), defaultColWidth);
       cols.add(exportColumn);
-      putFieldFormat(sheetProvider, field, propInfo, exportColumn);
+      putFieldFormat(sheetProvider, accessor.getField(), accessor.getPropertyInfo(), exportColumn);
     }
     cols = onBeforeSettingColumns(sheetProvider, cols);
-    // column property names
-    sheet.setColumns(cols);
-    final PropertyMapping mapping = new PropertyMapping();
-    for (final Object entry : list) {
-      for (final Field field : fields) {
-        final PropertyInfo propInfo = field.getAnnotation(PropertyInfo.class);
-        if (propInfo == null) {
-          // Shouldn't occur.
-          continue;
-        }
-        field.setAccessible(true);
-        addMapping(mapping, entry, field);
+    return cols;
+  }
+
+  private void add(final ExportSheet sheet, final Iterator< ? > it, final FieldAccessor[] accessors)
+  {
+    while (it.hasNext() == true) {
+      final Object entry = it.next();
+      final PropertyMapping mapping = new PropertyMapping();
+      for (final FieldAccessor accessor : accessors) {
+        addMapping(mapping, entry, accessor);
       }
       addMappings(mapping, entry);
       sheet.addRow(mapping.getMapping(), 0);
     }
+  }
 
-    return sheet;
+  /**
+   * The values of the entries are extracted in chunks by the worker threads and written by the calling thread in the order of the
+   * iterator. At most two chunks per processor are held in memory. The values are converted and their cell formats are resolved by the
+   * worker threads, too, if the content provider of the sheet is a {@link XlsContentProvider}.
+   */
+  private void addInParallel(final ExportSheet sheet, final Iterator< ? > it, final FieldAccessor[] accessors)
+  {
+    final PropertyPath[] propertyPaths = sheet.getPropertyPaths();
+    final XlsContentProvider xlsProvider = sheet.getContentProvider() instanceof XlsContentProvider ? (XlsContentProvider) sheet
+        .getContentProvider() : null;
+    final int nThreads = Runtime.getRuntime().availableProcessors();
+    final ExecutorService exec = this.executor != null ? this.executor : Executors.newFixedThreadPool(nThreads);
+    final LinkedList<Future<Object[]>> pending = new LinkedList<Future<Object[]>>();
+    try {
+      while (it.hasNext() == true || pending.isEmpty() == false) {
+        while (it.hasNext() == true && pending.size() < 2 * nThreads) {
+          Object[] chunk = new Object[PARALLEL_CHUNK_SIZE];
+          int size = 0;
+          while (size < chunk.length && it.hasNext() == true) {
+            chunk[size++] = it.next();
+          }
+          if (size < chunk.length) {
+            chunk = Arrays.copyOf(chunk, size);
+          }
+          final Object[] entries = chunk;
+          pending.add(exec.submit(new Callable<Object[]>() {
+            @Override
+            public Object[] call()
+            {
+              final Object[][] values = extractValues(entries, accessors, propertyPaths);
+              if (xlsProvider == null) {
+                return values;
+              }
+              final XlsContentProvider.PreparedRow[] rows = new XlsContentProvider.PreparedRow[values.length];
+              for (int i = 0; i < values.length; i++) {
+                rows[i] = xlsProvider.prepareValues(values[i], propertyPaths, 0);
+              }
+              return rows;
+            }
+          }));
+        }
+        for (final Object row : pending.removeFirst().get()) {
+          if (xlsProvider != null) {
+            sheet.addRow().fillPrepared(xlsProvider, (XlsContentProvider.PreparedRow) row, 0);
+          } else {
+            sheet.addRow().fillValues((Object[]) row, propertyPaths, 0);
+          }
+        }
+      }
+    } catch (final InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted while exporting sheet '" + sheet.getName() + "'.", ex);
+    } catch (final ExecutionException ex) {
+      throw new RuntimeException("Can't export sheet '" + sheet.getName() + "': " + ex.getCause(), ex.getCause());
+    } finally {
+      for (final Future< ? > future : pending) {
+        future.cancel(true);
+      }
+      if (exec != this.executor) {
+        exec.shutdown();
+      }
+    }
+  }
+
+  /**
+   * @return The values of the given entries in the order of the property paths (the same values as used by
+   *         {@link ExportRow#fillBean(Object, PropertyPath[], int)} for a mapping).
+   */
+  private Object[][] extractValues(final Object[] entries, final FieldAccessor[] accessors, final PropertyPath[] propertyPaths)
+  {
+    final Object[][] rows = new Object[entries.length][];
+    for (int i = 0; i < entries.length; i++) {
+      final PropertyMapping mapping = new PropertyMapping();
+      for (final FieldAccessor accessor : accessors) {
+        addMapping(mapping, entries[i], accessor);
+      }
+      addMappings(mapping, entries[i]);
+      final Map<String, Object> map = mapping.getMapping();
+      final Object[] values = new Object[propertyPaths.length];
+      for (int col = 0; col < propertyPaths.length; col++) {
+        final String property = propertyPaths[col].getPath();
+        values[col] = property == null ? map : map.get(property);
+      }
+      rows[i] = values;
+    }
+    return rows;
   }
 
   /**
@@ -179,6 +416,21 @@ public class ExcelExporter
     mapping.add(field.getName(), BeanHelper.getFieldValue(entry, field));
   }
 
+  /**
+   * Uses the pre-compiled accessor. Calls {@link #addMapping(PropertyMapping, Object, Field)} if overridden by a derived class.
+   * @param mapping
+   * @param entry The current entry of the list to add to the Excel sheet.
+   * @param accessor The accessor of the field of the entry to add.
+   */
+  protected void addMapping(final PropertyMapping mapping, final Object entry, final FieldAccessor accessor)
+  {
+    if (addMappingOverridden == true) {
+      addMapping(mapping, entry, accessor.getField());
+    } else {
+      mapping.add(accessor.getName(), accessor.getValue(entry));
+    }
+  }
+
   /**
    * Override this for adding additional mappings. Called by {@link #addList(ExportSheet, List)}.
    * @param mapping
@@ -197,6 +449,53 @@ public class ExcelExporter
     return workBook;
   }
 
+  /**
+   * Lists with at least the given number of entries are exported in parallel mode by {@link #addList(ExportSheet, List)}: the values of
+   * the entries are extracted, converted and formatted by worker threads, the rows are written in the order of the list by the calling
+   * thread. The result is the same as in sequential mode (with a new mapping for every entry in both modes), but
+   * {@link #addMapping(PropertyMapping, Object, Field)}, {@link #addMappings(PropertyMapping, Object)} and the customizing methods of the
+   * {@link XlsContentProvider} ({@link XlsContentProvider#getCustomizedValue(Object)},
+   * {@link XlsContentProvider#getCustomizedCellFormat(CellFormat, Object)}) are called concurrently, so overriding methods have to be
+   * thread-safe. Entries added by {@link #addStream(ExportSheet, Class, Iterator)} are exported in parallel mode if a
+   * threshold is given (the number of entries is unknown).
+   * @param parallelThreshold 0 (default) for exporting all lists sequentially.
+   * @return this for chaining.
+   */
+  public ExcelExporter setParallelThreshold(final int parallelThreshold)
+  {
+    this.parallelThreshold = parallelThreshold;
+    return this;
+  }
+
+  /**
+   * @param executor The executor used in parallel mode. If not given, a thread pool is created (and shut down) by every call of
+   *          {@link #addList(ExportSheet, List)} with one thread per processor.
+   * @return this for chaining.
+   * @see #setParallelThreshold(int)
+   */
+  public ExcelExporter setExecutor(final ExecutorService executor)
+  {
+    this.executor = executor;
+    return this;
+  }
+
+  /**
+   * If a cache is given, the setup of the columns of a bean class (titles, widths, order and formats) is done once and re-used by
+   * following exports of the same bean class, export context, locale, exporter class and default column width. The formats put to the
+   * content provider by {@link #putFieldFormat(ContentProvider, Field, PropertyInfo, ExportColumn)} and
+   * {@link #onBeforeSettingColumns(ContentProvider, List)} are replayed, so their results mustn't depend on other state than the cache key
+   * and other side effects are lost. Setups putting formats with fonts (which are bound to a workbook) or formats of other keys than
+   * strings, classes and columns aren't cached, neither are setups with columns of own subclasses of {@link ExportColumn} (the cached
+   * columns are copies). Only setups of {@link XlsContentProvider}s are cached.
+   * @param exportPlanCache null (default) for no caching.
+   * @return this for chaining.
+   */
+  public ExcelExporter setExportPlanCache(final ExportPlanCache exportPlanCache)
+  {
+    this.exportPlanCache = exportPlanCache;
+    return this;
+  }
+
   /**
    * @param defaultColWidth the defaultColWidth to set
    * @return this for chaining.
@@ -37,10 +37,11 @@ import org.apache.commons.beanutils.ConvertUtils;
 import org.apache.commons.beanutils.PropertyUtils;
 import org.apache.commons.lang.ClassUtils;
 import org.apache.commons.lang.StringUtils;
-import org.apache.poi.hssf.usermodel.HSSFCell;
-import org.apache.poi.hssf.usermodel.HSSFRow;
-import org.apache.poi.hssf.usermodel.HSSFSheet;
 import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.usermodel.Workbook;
 
 /**
  * Convert a given Excel-Sheet into an object-Array.
@@ -54,7 +55,7 @@ public class ExcelImport<T>
   private static final org.projectforge.common.Logger log = org.projectforge.common.Logger.getLogger(ExcelImport.class);
 
   /** the workbook containing the values. */
-  private final HSSFWorkbook work;
+  private final Workbook work;
 
   /** a optional map for mapping column-names to property-names. */
   private Map<String, String> columnToPropertyMap;
@@ -72,21 +73,47 @@ public class ExcelImport<T>
   private ClassFactory<T> clazzFactory;
 
   /**
-   * Opens a given Excel-document. The stream is always closed.
+   * Opens a given Excel-document in xls format. The stream is always closed.
    * @param xlsStream the stream of the Excel-document.
    * @throws IOException if the document is not readable
    */
   public ExcelImport(final InputStream xlsStream) throws IOException
   {
-    // Closed by HSSFWorkbook
-    work = new HSSFWorkbook(xlsStream);
+    this(xlsStream, WorkbookFormat.XLS);
+  }
+
+  /**
+   * Opens a given Excel-document. The stream is always closed.
+   * @param stream the stream of the Excel-document.
+   * @param format the format of the document (xls or xlsx).
+   * @throws IOException if the document is not readable
+   */
+  public ExcelImport(final InputStream stream, final WorkbookFormat format) throws IOException
+  {
+    try {
+      // The document is only read, so the other nodes of xls files needn't be preserved (saves memory).
+      work = format == WorkbookFormat.XLS ? new HSSFWorkbook(stream) : format.readWorkbook(stream);
+    } finally {
+      stream.close();
+    }
   }
 
   /**
    * get a reference to the workbook for special features.
    * @return the previously loaded document
+   * @deprecated Works only for documents in xls format, use {@link #getPoiWorkbook()} instead.
    */
+  @Deprecated
   public HSSFWorkbook getWorkbook()
+  {
+    return (HSSFWorkbook) work;
+  }
+
+  /**
+   * get a reference to the workbook for special features.
+   * @return the previously loaded document
+   */
+  public Workbook getPoiWorkbook()
   {
     return work;
   }
@@ -167,8 +194,8 @@ public class ExcelImport<T>
    */
   public List<String> getColumnNames()
   {
-    final HSSFSheet sheet = work.getSheetAt(activeSheet);
-    final HSSFRow columnNames = sheet.getRow(columnNameRow);
+    final Sheet sheet = work.getSheetAt(activeSheet);
+    final Row columnNames = sheet.getRow(columnNameRow);
     final List<String> list = new ArrayList<String>();
     for (int column = 0; column < columnNames.getPhysicalNumberOfCells(); column++) {
       if (columnNames.getCell(column) == null) {
@@ -194,10 +221,10 @@ public class ExcelImport<T>
     if (clazzFactory == null) {
       setRowClass(clazz);
     }
-    final HSSFSheet sheet = work.getSheetAt(activeSheet);
+    final Sheet sheet = work.getSheetAt(activeSheet);
     final int numberOfRows = sheet.getLastRowNum();
     final List<T> list = new ArrayList<T>(numberOfRows);
-    final HSSFRow columnNames = sheet.getRow(columnNameRow);
+    final Row columnNames = sheet.getRow(columnNameRow);
     for (int i = startAtRow; i <= numberOfRows; i++) {
       try {
         T line;
@@ -247,7 +274,7 @@ public class ExcelImport<T>
    * @throws InvocationTargetException if the object creation fails with an exception or the setter threw an exception.
    * @throws NoSuchMethodException if the setter for the property name is not existant.
    */
-  private T convertToBean(final HSSFRow row, final HSSFRow columnNames, final int rowNum) throws InstantiationException,
+  private T convertToBean(final Row row, final Row columnNames, final int rowNum) throws InstantiationException,
       IllegalAccessException, InvocationTargetException, NoSuchMethodException
   {
     if (row == null) {
@@ -303,13 +330,13 @@ public class ExcelImport<T>
    * @param destClazz the target class
    * @return a String, Boolean, Date or BigDecimal
    */
-  private Object toNativeType(final HSSFCell cell, final Class< ? > destClazz)
+  private Object toNativeType(final Cell cell, final Class< ? > destClazz)
   {
     if (cell == null) {
       return null;
     }
     switch (cell.getCellType()) {
-      case HSSFCell.CELL_TYPE_NUMERIC:
+      case Cell.CELL_TYPE_NUMERIC:
         log.debug("using numeric");
         if (Date.class.isAssignableFrom(destClazz)) {
           return cell.getDateCellValue();
@@ -317,16 +344,16 @@ public class ExcelImport<T>
         String strVal = String.valueOf(cell.getNumericCellValue());
         strVal = strVal.replaceAll("\\.0*$", "");
         return ConvertUtils.convert(strVal, destClazz);
-      case HSSFCell.CELL_TYPE_BOOLEAN:
+      case Cell.CELL_TYPE_BOOLEAN:
         log.debug("using boolean");
         return Boolean.valueOf(cell.getBooleanCellValue());
-      case HSSFCell.CELL_TYPE_STRING:
+      case Cell.CELL_TYPE_STRING:
         log.debug("using string");
         strVal = StringUtils.trimToNull(cell.getStringCellValue());
         return ConvertUtils.convert(strVal, destClazz);
-      case HSSFCell.CELL_TYPE_BLANK:
+      case Cell.CELL_TYPE_BLANK:
         return null;
-      case HSSFCell.CELL_TYPE_FORMULA:
+      case Cell.CELL_TYPE_FORMULA:
         return new Formula(cell.getCellFormula());
       default:
         return StringUtils.trimToNull(cell.getStringCellValue());
@@ -174,10 +174,15 @@ public class ExportCell
     return this;
   }
 
+  /**
+   * @return The cell format for modification: a new one if not given or a mutable copy if the cell format is interned (immutable).
+   */
   public CellFormat ensureAndGetCellFormat()
   {
     if (cellFormat == null) {
       cellFormat = new CellFormat();
+    } else if (cellFormat.isInterned() == true) {
+      cellFormat = cellFormat.clone();
     }
     return cellFormat;
   }
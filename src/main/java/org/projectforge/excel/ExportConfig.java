@@ -46,13 +46,14 @@ public class ExportConfig
   }
 
   /**
-   * Override this method for own {@link XlsContentProvider}.
+   * Override this method for own {@link XlsContentProvider}. Called for every new sheet, the export context to use is given by
+   * {@link ExportWorkbook#getSettings()}.
    * @param workbook
    * @return
    */
   protected ContentProvider createNewContentProvider(ExportWorkbook workbook)
   {
-    return new XlsContentProvider(getDefaultExportContext(), workbook);
+    return new XlsContentProvider(workbook);
   }
 
   /**
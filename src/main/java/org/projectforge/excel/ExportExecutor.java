@@ -0,0 +1,266 @@
+/////////////////////////////////////////////////////////////////////////////
+//
+// Project ProjectForge Community Edition
+//         www.projectforge.org
+//
+// Copyright (C) 2001-2014 Kai Reinhard (k.reinhard@micromata.de)
+//
+// ProjectForge is dual-licensed.
+//
+// This community edition is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License as published
+// by the Free Software Foundation; version 3 of the License.
+//
+// This community edition is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+// Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with this program; if not, see http://www.gnu.org/licenses/.
+//
+/////////////////////////////////////////////////////////////////////////////
+
+package org.projectforge.excel;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs exports asynchronously with a limited number of exports in flight. Further exports are queued without occupying a thread until a
+ * running export is finished, so bursts of export requests don't block the caller's threads and the memory is bounded by the number of
+ * permits. <br/>
+ * Example:
+ * 
+ * <pre>
+ * final Future&lt;byte[]&gt; result = exportExecutor.submitAsByteArray(new Callable&lt;ExportWorkbook&gt;() {
+ *   public ExportWorkbook call()
+ *   {
+ *     final ExportWorkbook workbook = new ExportWorkbook();
+ *     ...
+ *     return workbook;
+ *   }
+ * });
+ * </pre>
+ */
+public class ExportExecutor
+{
+  private static final org.projectforge.common.Logger log = org.projectforge.common.Logger.getLogger(ExportExecutor.class);
+
+  private final Semaphore permits;
+
+  private final Queue<FutureTask< ? >> queue = new ConcurrentLinkedQueue<FutureTask< ? >>();
+
+  private final ExecutorService executor;
+
+  private final int maxConcurrentExports;
+
+  private volatile boolean shutdown;
+
+  /**
+   * Uses daemon threads created on demand.
+   * @param maxConcurrentExports The maximum number of exports running at the same time.
+   */
+  public ExportExecutor(final int maxConcurrentExports)
+  {
+    this(maxConcurrentExports, new ThreadFactory() {
+      private final AtomicInteger counter = new AtomicInteger();
+
+      @Override
+      public Thread newThread(final Runnable runnable)
+      {
+        final Thread thread = new Thread(runnable, "excel-export-" + counter.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  /**
+   * @param maxConcurrentExports The maximum number of exports running at the same time.
+   * @param threadFactory The factory of the threads running the exports (threads are created on demand).
+   */
+  public ExportExecutor(final int maxConcurrentExports, final ThreadFactory threadFactory)
+  {
+    this(maxConcurrentExports, Executors.newCachedThreadPool(threadFactory));
+  }
+
+  /**
+   * @param maxConcurrentExports The maximum number of exports running at the same time.
+   * @param executor Runs the exports.
+   */
+  public ExportExecutor(final int maxConcurrentExports, final ExecutorService executor)
+  {
+    if (maxConcurrentExports < 1) {
+      throw new IllegalArgumentException("maxConcurrentExports must be at least 1: " + maxConcurrentExports);
+    }
+    this.maxConcurrentExports = maxConcurrentExports;
+    this.permits = new Semaphore(maxConcurrentExports);
+    this.executor = executor;
+  }
+
+  /**
+   * @param export Creates and fills the workbook.
+   * @return The future of the written workbook.
+   * @see ExportWorkbook#getAsByteArray()
+   */
+  public Future<byte[]> submitAsByteArray(final Callable<ExportWorkbook> export)
+  {
+    return submit(new Callable<byte[]>() {
+      @Override
+      public byte[] call() throws Exception
+      {
+        return export.call().getAsByteArray();
+      }
+    });
+  }
+
+  /**
+   * @param export Creates and fills the workbook.
+   * @param file The file to write.
+   * @return The future of the written file.
+   */
+  public Future<File> submitToFile(final Callable<ExportWorkbook> export, final File file)
+  {
+    return submit(new Callable<File>() {
+      @Override
+      public File call() throws Exception
+      {
+        export.call().write(new FileOutputStream(file));
+        return file;
+      }
+    });
+  }
+
+  /**
+   * @param export Creates and fills the workbook.
+   * @param out The stream to write (will be closed after writing).
+   * @return The future finished after writing.
+   * @see ExportWorkbook#write(OutputStream)
+   */
+  public Future<Void> submitToStream(final Callable<ExportWorkbook> export, final OutputStream out)
+  {
+    return submit(new Callable<Void>() {
+      @Override
+      public Void call() throws Exception
+      {
+        export.call().write(out);
+        return null;
+      }
+    });
+  }
+
+  /**
+   * Queues the given job, it's run as soon as a permit is available.
+   * @param job
+   * @return The future of the job's result.
+   * @throws RejectedExecutionException if this executor is shut down.
+   */
+  public <T> Future<T> submit(final Callable<T> job)
+  {
+    if (shutdown == true) {
+      throw new RejectedExecutionException("Export executor is shut down.");
+    }
+    final FutureTask<T> task = new FutureTask<T>(job);
+    queue.add(task);
+    dispatch();
+    return task;
+  }
+
+  /**
+   * @return The number of exports waiting for a permit.
+   */
+  public int getQueueSize()
+  {
+    return queue.size();
+  }
+
+  /**
+   * @return The number of free permits.
+   */
+  public int getAvailablePermits()
+  {
+    return permits.availablePermits();
+  }
+
+  /**
+   * No further exports are accepted, but the running and queued exports are still run. The underlying executor is shut down after the last
+   * queued export is finished.
+   * @see ExecutorService#shutdown()
+   */
+  public void shutdown()
+  {
+    shutdown = true;
+    shutdownIfIdle();
+  }
+
+  /**
+   * @return true if {@link #shutdown()} was called.
+   */
+  public boolean isShutdown()
+  {
+    return shutdown;
+  }
+
+  /**
+   * Shuts the underlying executor down if shutdown was requested and no export is queued or running. The queue is checked before the
+   * permits: a job polled from the queue holds its permit until it's finished.
+   */
+  private void shutdownIfIdle()
+  {
+    if (shutdown == true && queue.isEmpty() == true && permits.availablePermits() == maxConcurrentExports) {
+      executor.shutdown();
+    }
+  }
+
+  /**
+   * Starts queued jobs while permits are available. Called after queuing a job and after finishing a job, so no queued job is left behind.
+   * If the underlying executor rejects a job, all queued jobs are cancelled (their futures throw a CancellationException).
+   */
+  private void dispatch()
+  {
+    while (queue.isEmpty() == false && permits.tryAcquire() == true) {
+      final FutureTask< ? > task = queue.poll();
+      if (task == null) {
+        permits.release();
+        break;
+      }
+      try {
+        executor.execute(new Runnable() {
+          @Override
+          public void run()
+          {
+            try {
+              task.run();
+            } finally {
+              permits.release();
+              dispatch();
+            }
+          }
+        });
+      } catch (final RejectedExecutionException ex) {
+        log.error("Can't start export, cancelling all queued exports: " + ex, ex);
+        permits.release();
+        task.cancel(false);
+        FutureTask< ? > queued;
+        while ((queued = queue.poll()) != null) {
+          queued.cancel(false);
+        }
+        return;
+      }
+    }
+    shutdownIfIdle();
+  }
+}
@@ -0,0 +1,49 @@
+/////////////////////////////////////////////////////////////////////////////
+//
+// Project ProjectForge Community Edition
+//         www.projectforge.org
+//
+// Copyright (C) 2001-2014 Kai Reinhard (k.reinhard@micromata.de)
+//
+// ProjectForge is dual-licensed.
+//
+// This community edition is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License as published
+// by the Free Software Foundation; version 3 of the License.
+//
+// This community edition is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+// Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with this program; if not, see http://www.gnu.org/licenses/.
+//
+/////////////////////////////////////////////////////////////////////////////
+
+
+package org.projectforge.excel;
+
+/**
+ * Gets informed about the costs of exports, e. g. for monitoring. A listener may be registered by
+ * {@link ExportWorkbook#setListener(ExportListener)} or {@link ExcelExporter#setListener(ExportListener)} and may be shared by any number of
+ * exports, so implementations have to be thread-safe. The listener is called by the exporting threads and should return fast.
+ * @see ExportMetrics
+ */
+public interface ExportListener
+{
+  /**
+   * Is called after each phase, phases may occur several times per export (e. g. once per sheet).
+   * @param phase
+   * @param nanos The duration of the phase in nanoseconds.
+   */
+  public void phaseFinished(ExportPhase phase, long nanos);
+
+  /**
+   * Is called after the workbook is written. The numbers of rows, cells, cell styles and fonts are available by the getters of the given
+   * workbook.
+   * @param workbook
+   * @param bytes The number of bytes written.
+   */
+  public void workbookWritten(ExportWorkbook workbook, long bytes);
+}
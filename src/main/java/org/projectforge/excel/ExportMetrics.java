@@ -0,0 +1,159 @@
+/////////////////////////////////////////////////////////////////////////////
+//
+// Project ProjectForge Community Edition
+//         www.projectforge.org
+//
+// Copyright (C) 2001-2014 Kai Reinhard (k.reinhard@micromata.de)
+//
+// ProjectForge is dual-licensed.
+//
+// This community edition is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License as published
+// by the Free Software Foundation; version 3 of the License.
+//
+// This community edition is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+// Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with this program; if not, see http://www.gnu.org/licenses/.
+//
+/////////////////////////////////////////////////////////////////////////////
+
+
+package org.projectforge.excel;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sums up the durations and counts of all exports reporting to it, e. g. one instance per application feeding a dashboard. All counters
+ * are lock-free (atomic), so the metrics may stay enabled in production.
+ */
+public class ExportMetrics implements ExportListener
+{
+  private final AtomicLong[] phaseNanos = new AtomicLong[ExportPhase.values().length];
+
+  private final AtomicLong[] phaseCounts = new AtomicLong[ExportPhase.values().length];
+
+  private final AtomicLong workbooks = new AtomicLong();
+
+  private final AtomicLong rows = new AtomicLong();
+
+  private final AtomicLong cells = new AtomicLong();
+
+  private final AtomicLong cellStyles = new AtomicLong();
+
+  private final AtomicLong fonts = new AtomicLong();
+
+  private final AtomicLong bytes = new AtomicLong();
+
+  private final AtomicLong peakRowsInMemory = new AtomicLong();
+
+  public ExportMetrics()
+  {
+    for (int i = 0; i < phaseNanos.length; i++) {
+      phaseNanos[i] = new AtomicLong();
+      phaseCounts[i] = new AtomicLong();
+    }
+  }
+
+  @Override
+  public void phaseFinished(final ExportPhase phase, final long nanos)
+  {
+    phaseNanos[phase.ordinal()].addAndGet(nanos);
+    phaseCounts[phase.ordinal()].incrementAndGet();
+  }
+
+  @Override
+  public void workbookWritten(final ExportWorkbook workbook, final long bytes)
+  {
+    workbooks.incrementAndGet();
+    this.rows.addAndGet(workbook.getNumberOfRows());
+    this.cells.addAndGet(workbook.getNumberOfCells());
+    this.cellStyles.addAndGet(workbook.getNumberOfCellStyles());
+    this.fonts.addAndGet(workbook.getNumberOfFonts());
+    this.bytes.addAndGet(bytes);
+    final long peak = workbook.getPeakRowsInMemory();
+    long current = peakRowsInMemory.get();
+    while (peak > current && peakRowsInMemory.compareAndSet(current, peak) == false) {
+      current = peakRowsInMemory.get();
+    }
+  }
+
+  /**
+   * @param phase
+   * @return The total duration of the given phase in nanoseconds.
+   */
+  public long getNanos(final ExportPhase phase)
+  {
+    return phaseNanos[phase.ordinal()].get();
+  }
+
+  /**
+   * @param phase
+   * @return How often the given phase was finished.
+   */
+  public long getCount(final ExportPhase phase)
+  {
+    return phaseCounts[phase.ordinal()].get();
+  }
+
+  /**
+   * @return The number of written workbooks.
+   */
+  public long getWorkbooks()
+  {
+    return workbooks.get();
+  }
+
+  public long getRows()
+  {
+    return rows.get();
+  }
+
+  public long getCells()
+  {
+    return cells.get();
+  }
+
+  public long getCellStyles()
+  {
+    return cellStyles.get();
+  }
+
+  public long getFonts()
+  {
+    return fonts.get();
+  }
+
+  /**
+   * @return The number of bytes of all written workbooks.
+   */
+  public long getBytes()
+  {
+    return bytes.get();
+  }
+
+  /**
+   * @return The maximum number of row wrappers (ExportRow) held in memory by a single workbook.
+   * @see ExportWorkbook#getPeakRowsInMemory()
+   */
+  public long getPeakRowsInMemory()
+  {
+    return peakRowsInMemory.get();
+  }
+
+  @Override
+  public String toString()
+  {
+    final StringBuilder sb = new StringBuilder();
+    sb.append("workbooks=").append(getWorkbooks()).append(", rows=").append(getRows()).append(", cells=").append(getCells())
+        .append(", cellStyles=").append(getCellStyles()).append(", fonts=").append(getFonts()).append(", bytes=").append(getBytes())
+        .append(", peakRowsInMemory=").append(getPeakRowsInMemory());
+    for (final ExportPhase phase : ExportPhase.values()) {
+      sb.append(", ").append(phase).append("=").append(getNanos(phase) / 1000000).append("ms");
+    }
+    return sb.toString();
+  }
+}
@@ -0,0 +1,43 @@
+/////////////////////////////////////////////////////////////////////////////
+//
+// Project ProjectForge Community Edition
+//         www.projectforge.org
+//
+// Copyright (C) 2001-2014 Kai Reinhard (k.reinhard@micromata.de)
+//
+// ProjectForge is dual-licensed.
+//
+// This community edition is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License as published
+// by the Free Software Foundation; version 3 of the License.
+//
+// This community edition is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+// Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with this program; if not, see http://www.gnu.org/licenses/.
+//
+/////////////////////////////////////////////////////////////////////////////
+
+
+package org.projectforge.excel;
+
+/**
+ * The phases of an export reported to {@link ExportListener#phaseFinished(ExportPhase, long)}.
+ */
+public enum ExportPhase
+{
+  /** Resolving the columns, formats and accessors of a bean class (see {@link ExcelExporter}). */
+  PLAN,
+
+  /** Reading the values of the beans and filling the rows (see {@link ExcelExporter}). */
+  EXTRACTION,
+
+  /** Applying the cell styles of the rows not yet committed before writing the workbook. */
+  STYLING,
+
+  /** Writing the poi workbook. */
+  SERIALIZATION;
+}
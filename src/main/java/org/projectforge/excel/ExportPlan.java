@@ -0,0 +1,172 @@
+/////////////////////////////////////////////////////////////////////////////
+//
+// Project ProjectForge Community Edition
+//         www.projectforge.org
+//
+// Copyright (C) 2001-2014 Kai Reinhard (k.reinhard@micromata.de)
+//
+// ProjectForge is dual-licensed.
+//
+// This community edition is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License as published
+// by the Free Software Foundation; version 3 of the License.
+//
+// This community edition is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+// Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with this program; if not, see http://www.gnu.org/licenses/.
+//
+/////////////////////////////////////////////////////////////////////////////
+
+package org.projectforge.excel;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.projectforge.excel.BeanAccessorPlan.FieldAccessor;
+
+/**
+ * The compiled setup of an export of a bean class by {@link ExcelExporter}: the accessors, the columns (titles, widths and order) and the
+ * formats put to the content provider while setting up the columns. Only the formats are replayed on the content provider of following
+ * exports, other side effects of the setup aren't.<br/>
+ * Plans hold no references to a workbook: the formats are stored as mutable copies and formats with a font (bound to a workbook) aren't
+ * cacheable at all.
+ * @see ExportPlanCache
+ */
+public class ExportPlan
+{
+  private final FieldAccessor[] accessors;
+
+  private final List<ExportColumn> columns;
+
+  /** Formats by String or Class key. */
+  private final Map<Object, CellFormat> formats;
+
+  /** Formats by column (name). */
+  private final Map<String, ColumnFormat> columnFormats;
+
+  private ExportPlan(final FieldAccessor[] accessors, final List<ExportColumn> columns, final Map<Object, CellFormat> formats,
+      final Map<String, ColumnFormat> columnFormats)
+  {
+    this.accessors = accessors;
+    this.columns = columns;
+    this.formats = formats;
+    this.columnFormats = columnFormats;
+  }
+
+  /**
+   * Compares the formats of the content provider before and after the setup of the columns.
+   * @param accessors
+   * @param columns The columns created by the setup.
+   * @param formatsBefore The formats of the content provider before the setup.
+   * @param formatsAfter The formats of the content provider after the setup.
+   * @return The plan or null if the setup isn't cacheable (formats with fonts or keys other than strings, classes and columns, columns of
+   *         own subclasses of ExportColumn).
+   */
+  static ExportPlan create(final FieldAccessor[] accessors, final List<ExportColumn> columns, final Map<Object, CellFormat> formatsBefore,
+      final Map<Object, CellFormat> formatsAfter)
+  {
+    for (final ExportColumn column : columns) {
+      if (isCopyable(column) == false) {
+        return null;
+      }
+    }
+    final Map<Object, CellFormat> formats = new LinkedHashMap<Object, CellFormat>();
+    final Map<String, ColumnFormat> columnFormats = new LinkedHashMap<String, ColumnFormat>();
+    for (final Map.Entry<Object, CellFormat> entry : formatsAfter.entrySet()) {
+      final Object key = entry.getKey();
+      final CellFormat format = entry.getValue();
+      if (formatsBefore.get(key) == format) {
+        continue;
+      }
+      if (format == null || format.getFont() != null) {
+        return null;
+      }
+      if (key instanceof String || key instanceof Class< ? >) {
+        formats.put(key, format.clone());
+      } else if (key instanceof ExportColumn && isCopyable((ExportColumn) key) == true) {
+        final ExportColumn column = (ExportColumn) key;
+        columnFormats.put(column.getName(), new ColumnFormat(copy(column), format.clone()));
+      } else {
+        return null;
+      }
+    }
+    return new ExportPlan(accessors, copy(columns), formats, columnFormats);
+  }
+
+  public FieldAccessor[] getAccessors()
+  {
+    return accessors;
+  }
+
+  /**
+   * @return New copies of the columns, so every export may modify its own columns.
+   */
+  public List<ExportColumn> getColumns()
+  {
+    return copy(columns);
+  }
+
+  /**
+   * Puts the formats of the plan to the given content provider.
+   * @param contentProvider
+   */
+  void replay(final XlsContentProvider contentProvider)
+  {
+    for (final Map.Entry<Object, CellFormat> entry : formats.entrySet()) {
+      contentProvider.putFormat(entry.getKey(), entry.getValue().clone());
+    }
+    for (final ColumnFormat columnFormat : columnFormats.values()) {
+      contentProvider.putFormat(copy(columnFormat.column), columnFormat.format.clone());
+    }
+  }
+
+  /**
+   * @return The formats of the given content provider (snapshot) for {@link #create(FieldAccessor[], List, Map, Map)}.
+   */
+  static Map<Object, CellFormat> getFormats(final XlsContentProvider contentProvider)
+  {
+    return new HashMap<Object, CellFormat>(contentProvider.getFormats());
+  }
+
+  private static List<ExportColumn> copy(final List<ExportColumn> columns)
+  {
+    final List<ExportColumn> result = new ArrayList<ExportColumn>(columns.size());
+    for (final ExportColumn column : columns) {
+      result.add(copy(column));
+    }
+    return result;
+  }
+
+  /**
+   * Methods overridden by other subclasses (e. g. a dynamic title) would be lost by copying.
+   */
+  private static boolean isCopyable(final ExportColumn column)
+  {
+    return column.getClass() == ExportColumn.class || column.getClass() == I18nExportColumn.class;
+  }
+
+  private static ExportColumn copy(final ExportColumn column)
+  {
+    return new ExportColumn(column.getName(), column.getTitle(), column.getWidth());
+  }
+
+  private static class ColumnFormat
+  {
+    private final ExportColumn column;
+
+    private final CellFormat format;
+
+    private ColumnFormat(final ExportColumn column, final CellFormat format)
+    {
+      this.column = column;
+      this.format = format;
+    }
+  }
+}
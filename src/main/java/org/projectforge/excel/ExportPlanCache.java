@@ -0,0 +1,223 @@
+/////////////////////////////////////////////////////////////////////////////
+//
+// Project ProjectForge Community Edition
+//         www.projectforge.org
+//
+// Copyright (C) 2001-2014 Kai Reinhard (k.reinhard@micromata.de)
+//
+// ProjectForge is dual-licensed.
+//
+// This community edition is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License as published
+// by the Free Software Foundation; version 3 of the License.
+//
+// This community edition is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+// Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with this program; if not, see http://www.gnu.org/licenses/.
+//
+/////////////////////////////////////////////////////////////////////////////
+
+package org.projectforge.excel;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang.ObjectUtils;
+import org.apache.commons.lang.builder.HashCodeBuilder;
+
+/**
+ * Caches the export plans of {@link ExcelExporter} per bean class, export context, locale, exporter class and default column width. The least recently
+ * used plans are evicted if the maximum number of plans is exceeded. Call {@link #invalidate(Locale)} or {@link #clear()} e. g. after
+ * reloading i18n resources.
+ * @see ExcelExporter#setExportPlanCache(ExportPlanCache)
+ */
+public class ExportPlanCache
+{
+  private final int maxPlans;
+
+  /** Plans in access order (least recently used first). */
+  private final LinkedHashMap<Key, ExportPlan> plans;
+
+  private final AtomicLong hits = new AtomicLong();
+
+  private final AtomicLong misses = new AtomicLong();
+
+  private final AtomicLong evictions = new AtomicLong();
+
+  /**
+   * @param maxPlans The maximum number of cached plans.
+   */
+  public ExportPlanCache(final int maxPlans)
+  {
+    this.maxPlans = maxPlans;
+    this.plans = new LinkedHashMap<Key, ExportPlan>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(final Map.Entry<Key, ExportPlan> eldest)
+      {
+        if (size() > ExportPlanCache.this.maxPlans) {
+          evictions.incrementAndGet();
+          return true;
+        }
+        return false;
+      }
+    };
+  }
+
+  /**
+   * @return The cached plan or null if not cached.
+   */
+  ExportPlan get(final Class< ? > beanClass, final ExportSettings settings, final Class< ? > exporterClass, final int defaultColWidth)
+  {
+    final ExportPlan plan;
+    synchronized (plans) {
+      plan = plans.get(new Key(beanClass, settings, exporterClass, defaultColWidth));
+    }
+    if (plan != null) {
+      hits.incrementAndGet();
+    } else {
+      misses.incrementAndGet();
+    }
+    return plan;
+  }
+
+  void put(final Class< ? > beanClass, final ExportSettings settings, final Class< ? > exporterClass, final int defaultColWidth,
+      final ExportPlan plan)
+  {
+    synchronized (plans) {
+      plans.put(new Key(beanClass, settings, exporterClass, defaultColWidth), plan);
+    }
+  }
+
+  /**
+   * Removes all plans of the given bean class.
+   * @param beanClass
+   * @return this for chaining.
+   */
+  public ExportPlanCache invalidate(final Class< ? > beanClass)
+  {
+    synchronized (plans) {
+      final Iterator<Key> it = plans.keySet().iterator();
+      while (it.hasNext() == true) {
+        if (it.next().beanClass == beanClass) {
+          it.remove();
+        }
+      }
+    }
+    return this;
+  }
+
+  /**
+   * Removes all plans of the given locale, e. g. after reloading the i18n resources of this locale.
+   * @param locale
+   * @return this for chaining.
+   */
+  public ExportPlanCache invalidate(final Locale locale)
+  {
+    synchronized (plans) {
+      final Iterator<Key> it = plans.keySet().iterator();
+      while (it.hasNext() == true) {
+        if (ObjectUtils.equals(it.next().locale, locale) == true) {
+          it.remove();
+        }
+      }
+    }
+    return this;
+  }
+
+  public void clear()
+  {
+    synchronized (plans) {
+      plans.clear();
+    }
+  }
+
+  /**
+   * @return The number of cached plans.
+   */
+  public int getNumberOfPlans()
+  {
+    synchronized (plans) {
+      return plans.size();
+    }
+  }
+
+  public int getMaxPlans()
+  {
+    return maxPlans;
+  }
+
+  public long getHits()
+  {
+    return hits.get();
+  }
+
+  public long getMisses()
+  {
+    return misses.get();
+  }
+
+  public long getEvictions()
+  {
+    return evictions.get();
+  }
+
+  @Override
+  public String toString()
+  {
+    return "plans=" + getNumberOfPlans() + ", hits=" + getHits() + ", misses=" + getMisses() + ", evictions=" + getEvictions();
+  }
+
+  private static class Key
+  {
+    private final Class< ? > beanClass;
+
+    private final ExportContext exportContext;
+
+    private final Locale locale;
+
+    private final Class< ? > exporterClass;
+
+    private final int defaultColWidth;
+
+    private final int hash;
+
+    private Key(final Class< ? > beanClass, final ExportSettings settings, final Class< ? > exporterClass, final int defaultColWidth)
+    {
+      this.beanClass = beanClass;
+      this.exportContext = settings.getExportContext();
+      this.locale = settings.getLocale();
+      this.exporterClass = exporterClass;
+      this.defaultColWidth = defaultColWidth;
+      this.hash = new HashCodeBuilder().append(beanClass).append(exportContext).append(locale).append(exporterClass).append(defaultColWidth).toHashCode();
+    }
+
+    @Override
+    public int hashCode()
+    {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(final Object obj)
+    {
+      if (obj instanceof Key == false) {
+        return false;
+      }
+      final Key other = (Key) obj;
+      return beanClass == other.beanClass
+          && exportContext == other.exportContext
+          && exporterClass == other.exporterClass
+          && defaultColWidth == other.defaultColWidth
+          && ObjectUtils.equals(locale, other.locale) == true;
+    }
+  }
+}
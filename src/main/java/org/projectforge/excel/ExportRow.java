@@ -23,14 +23,13 @@
 
 package org.projectforge.excel;
 
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.Map;
 
 import org.apache.commons.lang.StringUtils;
 import org.apache.poi.ss.usermodel.Cell;
 import org.apache.poi.ss.usermodel.Row;
 import org.apache.poi.ss.util.CellRangeAddress;
-import org.projectforge.common.BeanHelper;
 
 public class ExportRow
 {
@@ -40,7 +39,10 @@ public class ExportRow
 
   private final Row poiRow;
 
-  private final Map<Integer, ExportCell> cellMap;
+  /** Rows wider than this number of columns are stored sparse if less than a quarter of their columns are used. */
+  static final int SPARSE_MIN_COLUMNS = 256;
+
+  private static final ExportCell[] NO_CELLS = new ExportCell[0];
 
   private ContentProvider contentProvider;
 
@@ -48,7 +50,16 @@ public class ExportRow
 
   private int maxCol = 0;
 
-  private ExportCell[] cells;
+  /** Dense mode: the cells by column index (with null entries for missing cells). Sparse mode: the added cells ordered by column. */
+  private ExportCell[] cells = NO_CELLS;
+
+  /** Sparse mode only: the column indexes of the cells. */
+  private int[] cols;
+
+  /** Sparse mode only: the cells returned by {@link #getCells()}, re-used until the next cell is added. */
+  private ExportCell[] compactedCells;
+
+  private int numberOfCells;
 
   public ExportRow(final ContentProvider contentProvider, final ExportSheet sheet, final Row poiRow, final int rowNum)
   {
@@ -56,9 +67,9 @@ public class ExportRow
     this.sheet = sheet;
     this.poiRow = poiRow;
     this.rowNum = rowNum;
-    cellMap = new HashMap<Integer, ExportCell>();
     if (poiRow.getLastCellNum() > 0) {
       // poiRow does already exists.
+      ensureCapacity(poiRow.getLastCellNum());
       for (int i = poiRow.getFirstCellNum(); i < poiRow.getLastCellNum(); i++) {
         final Cell poiCell = poiRow.getCell(i);
         if (poiCell != null) {
@@ -80,58 +91,217 @@ public class ExportRow
 
   public ExportCell addCell(final int col, final Object value, final String property)
   {
-    final Cell poiCell = poiRow.createCell(col);
-    final ExportCell cell = addPoiCell(col, poiCell);
+    final ExportCell cell = createCell(col);
     cell.setValue(value, property);
     return cell;
   }
 
+  private ExportCell createCell(final int col)
+  {
+    checkSparse(col);
+    if (cols == null
+        && contentProvider instanceof XlsContentProvider
+        && ((XlsContentProvider) contentProvider).isInlineStyling() == true) {
+      // Styles are applied immediately, so create the styled empty cells left of this cell now (see getCells()).
+      for (int i = numberOfCells == 0 ? 0 : maxCol + 1; i < col; i++) {
+        addCell(i);
+      }
+    }
+    final Cell poiCell = poiRow.createCell(col);
+    return addPoiCell(col, poiCell);
+  }
+
   public ExportCell addPoiCell(final int col, final Cell poiCell)
   {
     if (poiCell == null) {
       throw new UnsupportedOperationException("poiCell should not be null.");
     }
     final ExportCell cell = new ExportCell(contentProvider, poiCell, rowNum, col);
-    cellMap.put(col, cell);
+    checkSparse(col);
+    if (cols != null) {
+      putSparse(col, cell);
+    } else {
+      ensureCapacity(col + 1);
+      if (cells[col] == null) {
+        ++numberOfCells;
+      }
+      cells[col] = cell;
+    }
     if (col > maxCol) {
       maxCol = col;
-      cells = null;
     }
     return cell;
   }
 
   /**
-   * Gets only added cells, if the requested cell does not exist, null will be returned.
+   * Gets the cell of the given column, a missing cell is created as empty cell (e. g. for filling templates).
    * @param col
+   * @see #peekCell(int)
    */
   public ExportCell getCell(final int col)
   {
-    return getCells()[col];
+    final ExportCell cell = peekCell(col);
+    return cell != null ? cell : addCell(col);
+  }
+
+  /**
+   * Gets only added cells, if the requested cell does not exist, null will be returned.
+   * @param col
+   */
+  public ExportCell peekCell(final int col)
+  {
+    if (cols != null) {
+      final int idx = Arrays.binarySearch(cols, 0, numberOfCells, col);
+      return idx >= 0 ? cells[idx] : null;
+    }
+    return col >= 0 && col < cells.length ? cells[col] : null;
+  }
+
+  /**
+   * @return The number of added cells.
+   */
+  public int getNumberOfCells()
+  {
+    return numberOfCells;
+  }
+
+  /**
+   * A row is stored sparse (only the added cells are held and no empty cells are created between them) if it's wider than
+   * {@link #SPARSE_MIN_COLUMNS} columns and less than a quarter of its columns are used.
+   * @return true if this row is stored sparse.
+   */
+  public boolean isSparse()
+  {
+    return cols != null;
+  }
+
+  /**
+   * Reserves the storage for the given number of columns (dense mode only).
+   * @param numberOfCols
+   */
+  void ensureCapacity(final int numberOfCols)
+  {
+    if (cols != null || numberOfCols <= cells.length) {
+      return;
+    }
+    final int newLength = Math.max(numberOfCols, cells.length + (cells.length >> 1) + 1);
+    cells = Arrays.copyOf(cells, newLength);
+  }
+
+  /**
+   * Switches to the sparse mode if the given column is far away from the number of added cells.
+   * @param col
+   */
+  private void checkSparse(final int col)
+  {
+    if (cols != null || col < SPARSE_MIN_COLUMNS || col <= maxCol || (numberOfCells + 1) * 4 > col + 1) {
+      return;
+    }
+    final int[] sparseCols = new int[Math.max(8, numberOfCells * 2)];
+    final ExportCell[] sparseCells = new ExportCell[sparseCols.length];
+    int idx = 0;
+    for (int i = 0; i < cells.length; i++) {
+      if (cells[i] != null) {
+        sparseCols[idx] = i;
+        sparseCells[idx++] = cells[i];
+      }
+    }
+    cols = sparseCols;
+    cells = sparseCells;
+  }
+
+  private void putSparse(final int col, final ExportCell cell)
+  {
+    compactedCells = null;
+    int idx = numberOfCells > 0 && col > cols[numberOfCells - 1] ? -numberOfCells - 1 : Arrays.binarySearch(cols, 0, numberOfCells, col);
+    if (idx >= 0) {
+      // Replace the existing cell.
+      cells[idx] = cell;
+      return;
+    }
+    idx = -idx - 1;
+    if (numberOfCells == cols.length) {
+      final int newLength = cols.length + (cols.length >> 1) + 1;
+      cols = Arrays.copyOf(cols, newLength);
+      cells = Arrays.copyOf(cells, newLength);
+    }
+    if (idx < numberOfCells) {
+      System.arraycopy(cols, idx, cols, idx + 1, numberOfCells - idx);
+      System.arraycopy(cells, idx, cells, idx + 1, numberOfCells - idx);
+    }
+    cols[idx] = col;
+    cells[idx] = cell;
+    ++numberOfCells;
   }
 
   public void fillBean(final Object bean, final String[] propertyNames, final int startCol)
+  {
+    fillBean(bean, PropertyPath.compile(propertyNames), startCol);
+  }
+
+  /**
+   * Fills this row with the values of the given bean or map.
+   * @param bean A bean or a map (property names are used as keys).
+   * @param propertyPaths The compiled property names.
+   * @param startCol
+   * @see ExportSheet#setPropertyNames(String[])
+   */
+  public void fillBean(final Object bean, final PropertyPath[] propertyPaths, final int startCol)
   {
     int col = startCol;
-    for (final String property : propertyNames) {
+    ensureCapacity(startCol + propertyPaths.length);
+    if (bean instanceof Map< ? , ? >) {
+      final Map< ? , ? > map = (Map< ? , ? >) bean;
+      for (final PropertyPath propertyPath : propertyPaths) {
+        final String property = propertyPath.getPath();
+        addCell(col++, property == null ? bean : map.get(property), property);
+      }
+      return;
+    }
+    for (final PropertyPath propertyPath : propertyPaths) {
       Object value;
-      if (bean instanceof Map< ? , ? >) {
-        value = property == null ? bean : ((Map< ? , ? >) bean).get(property);
-      } else if (StringUtils.equals(property, ExportSheet.EMPTY)) {
+      if (propertyPath.isEmptyCell() == true) {
         value = "";
       } else {
         try {
-          if (property != null) {
-            value = BeanHelper.getNestedProperty(bean, property);
-          } else {
-            value = null;
-          }
+          value = propertyPath.getValue(bean);
         } catch (final RuntimeException ex) {
-          log.info("Can't load property " + property + " from bean " + bean + " (" + ex.getMessage() + ")");
-          value = "N/A";
+          log.info("Can't load property " + propertyPath + " from bean " + bean + " (" + ex.getMessage() + ")");
+          value = PropertyPath.NOT_AVAILABLE;
         }
       }
       // fill the value
-      addCell(col++, value, property);
+      addCell(col++, value, propertyPath.getPath());
+    }
+  }
+
+  /**
+   * Fills this row with the given values, extracted before from a bean or map (e. g. by another thread).
+   * @param values The values in the order of the property paths.
+   * @param propertyPaths The properties of the values (used for resolving the cell formats).
+   * @param startCol
+   * @see ExportSheet#getPropertyPaths()
+   */
+  public void fillValues(final Object[] values, final PropertyPath[] propertyPaths, final int startCol)
+  {
+    ensureCapacity(startCol + values.length);
+    for (int i = 0; i < values.length; i++) {
+      addCell(startCol + i, values[i], propertyPaths[i].getPath());
+    }
+  }
+
+  /**
+   * Fills this row with the values converted and formatted before by the given content provider (e. g. by another thread).
+   * @param contentProvider The content provider of this row which prepared the values.
+   * @param row
+   * @param startCol
+   * @see XlsContentProvider#prepareValues(Object[], PropertyPath[], int)
+   */
+  void fillPrepared(final XlsContentProvider contentProvider, final XlsContentProvider.PreparedRow row, final int startCol)
+  {
+    ensureCapacity(startCol + row.size());
+    for (int i = 0; i < row.size(); i++) {
+      contentProvider.setPreparedValue(createCell(startCol + i), row, i);
     }
   }
 
@@ -145,7 +315,7 @@ public class ExportRow
     if (cp == null) {
       cp = contentProvider;
     }
-    if (cp == null) {
+    if (cp == null || (cp instanceof XlsContentProvider && ((XlsContentProvider) cp).isInlineStyling() == true)) {
       return;
     }
     cp.updateRowStyle(this);
@@ -156,19 +326,34 @@ public class ExportRow
     }
   }
 
+  /**
+   * In dense mode all cells from column 0 to {@link #getMaxCol()} are returned (missing cells are created as empty cells, an empty row gets
+   * an empty cell 0). In sparse mode only the added cells are returned ordered by column (see {@link #isSparse()}).
+   * @return The cells of this row. The array mustn't be modified.
+   */
   public ExportCell[] getCells()
   {
-    if (cells == null) {
-      cells = new ExportCell[maxCol + 1];
+    if (cols != null) {
+      if (numberOfCells == cells.length) {
+        return cells;
+      }
+      if (compactedCells == null) {
+        compactedCells = Arrays.copyOf(cells, numberOfCells);
+      }
+      return compactedCells;
+    }
+    if (numberOfCells <= maxCol) {
+      ensureCapacity(maxCol + 1);
       for (int i = 0; i <= maxCol; i++) {
-        ExportCell cell = cellMap.get(i);
-        if (cell == null) {
-          cell = addCell(i);
-          cellMap.put(i, cell);
+        if (cells[i] == null) {
+          addCell(i);
         }
-        cells[i] = cell;
       }
     }
+    if (cells.length > maxCol + 1) {
+      // Trim once, so further calls return the same array.
+      cells = Arrays.copyOf(cells, maxCol + 1);
+    }
     return cells;
   }
 
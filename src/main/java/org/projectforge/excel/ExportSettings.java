@@ -0,0 +1,125 @@
+/////////////////////////////////////////////////////////////////////////////
+//
+// Project ProjectForge Community Edition
+//         www.projectforge.org
+//
+// Copyright (C) 2001-2014 Kai Reinhard (k.reinhard@micromata.de)
+//
+// ProjectForge is dual-licensed.
+//
+// This community edition is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License as published
+// by the Free Software Foundation; version 3 of the License.
+//
+// This community edition is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+// Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with this program; if not, see http://www.gnu.org/licenses/.
+//
+/////////////////////////////////////////////////////////////////////////////
+
+
+package org.projectforge.excel;
+
+import java.util.Locale;
+
+/**
+ * The immutable configuration of an export, resolved once from {@link ExportConfig} and passed through the {@link ExportWorkbook} to its
+ * sheets, content providers and columns. So exports with different locales or paper sizes may run concurrently without modifying the
+ * {@link ExportConfig} singleton. Instances may be shared by any number of exports.
+ * @see ExportWorkbook#ExportWorkbook(WorkbookFormat, int, ExportSettings)
+ */
+public class ExportSettings
+{
+  private final ExportConfig exportConfig;
+
+  private final ExportContext exportContext;
+
+  private final Locale locale;
+
+  private final short paperSizeId;
+
+  /**
+   * @return The settings of the current {@link ExportConfig#getInstance()}.
+   */
+  public static ExportSettings getDefault()
+  {
+    return new ExportSettings(ExportConfig.getInstance());
+  }
+
+  /**
+   * Resolves the default export context and paper size of the given config.
+   * @param exportConfig
+   */
+  public ExportSettings(final ExportConfig exportConfig)
+  {
+    this(exportConfig, exportConfig.getDefaultExportContext(), exportConfig.getDefaultPaperSizeId());
+  }
+
+  /**
+   * @param exportConfig Used for creating the content providers of new sheets.
+   * @param exportContext Used for translations and date formats. The locale is resolved once by this constructor.
+   * @param paperSizeId The paper size of new sheets, see {@link org.apache.poi.ss.usermodel.PrintSetup}.
+   */
+  public ExportSettings(final ExportConfig exportConfig, final ExportContext exportContext, final short paperSizeId)
+  {
+    this.exportConfig = exportConfig;
+    this.exportContext = exportContext;
+    this.locale = exportContext.getLocale();
+    this.paperSizeId = paperSizeId;
+  }
+
+  /**
+   * @param exportContext
+   * @return New settings with the given export context (and its locale).
+   */
+  public ExportSettings withExportContext(final ExportContext exportContext)
+  {
+    return new ExportSettings(exportConfig, exportContext, paperSizeId);
+  }
+
+  /**
+   * @param paperSizeId
+   * @return New settings with the given paper size.
+   */
+  public ExportSettings withPaperSizeId(final short paperSizeId)
+  {
+    return new ExportSettings(exportConfig, exportContext, paperSizeId);
+  }
+
+  /**
+   * @param workbook
+   * @return A new content provider of the config (using the export context of the workbook's settings).
+   * @see ExportConfig#createNewContentProvider(ExportWorkbook)
+   */
+  public ContentProvider createNewContentProvider(final ExportWorkbook workbook)
+  {
+    return exportConfig.createNewContentProvider(workbook);
+  }
+
+  public ExportConfig getExportConfig()
+  {
+    return exportConfig;
+  }
+
+  public ExportContext getExportContext()
+  {
+    return exportContext;
+  }
+
+  /**
+   * @return The locale of the export context at the time these settings were created.
+   */
+  public Locale getLocale()
+  {
+    return locale;
+  }
+
+  public short getPaperSizeId()
+  {
+    return paperSizeId;
+  }
+}
@@ -25,7 +25,9 @@ package org.projectforge.excel;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.poi.ss.usermodel.PrintSetup;
 import org.apache.poi.ss.usermodel.Row;
@@ -42,7 +44,7 @@ public class ExportSheet
   /** Constant for an empty cell */
   public static final String EMPTY = "LEAVE_CELL_EMPTY";
 
-  private final Sheet poiSheet;
+  private Sheet poiSheet;
 
   private final List<ExportRow> rows;
 
@@ -50,13 +52,72 @@ public class ExportSheet
 
   private String[] propertyNames;
 
+  private PropertyPath[] propertyPaths;
+
   private int rowCounter = 0;
 
   private ContentProvider contentProvider;
 
   private boolean imported;
 
+  private int rowAccessWindowSize = 0;
+
+  /** Number of rows (beginning with the first row) whose styles are already applied. */
+  private int committedRows = 0;
+
+  /** Number of committed rows (beginning with the first row) removed from this sheet. */
+  private int releasedRows = 0;
+
+  /** Index of the first element of {@link #rows}, released rows are removed from time to time. */
+  private int rowsOffset = 0;
+
+  private boolean releaseCommittedRows;
+
+  private ExportWorkbook workbook;
+
+  /** Maximum number of rows per poi sheet, 0 for no rollover. */
+  private int maxRows = 0;
+
+  /** Number of the current poi sheet (part) of this sheet, beginning with 1. */
+  private int part = 1;
+
+  /** Row number (of this sheet) of the first row of the current poi sheet. */
+  private int partRowOffset = 0;
+
+  /** The poi sheets of all parts, null if this sheet wasn't continued on further poi sheets. */
+  private List<Sheet> partPoiSheets;
+
+  /** Values of the head row repeated on every part. */
+  private Object[] headRowValues;
+
+  private int freezeCol, freezeRow;
+
+  private Map<Integer, Integer> columnWidths;
+
+  /** Poi row number of the first row of an existing poi sheet. */
+  private int firstPoiRowNum;
+
+  /** Number of rows of an existing poi sheet not yet wrapped (see {@link #getRowAt(int)}). */
+  private int unwrappedRows;
+
+  /** Number of cells of the committed rows. */
+  private long committedCells;
+
+  /** Maximum number of rows held by {@link #rows} at the same time. */
+  private int peakRowsInMemory;
+
   public ExportSheet(final ContentProvider contentProvider, final String name, final Sheet poiSheet)
+  {
+    this(contentProvider, name, poiSheet, ExportSettings.getDefault());
+  }
+
+  /**
+   * @param contentProvider
+   * @param name
+   * @param poiSheet
+   * @param settings The paper size of the settings is used for the print setup.
+   */
+  public ExportSheet(final ContentProvider contentProvider, final String name, final Sheet poiSheet, final ExportSettings settings)
   {
     this.contentProvider = contentProvider;
     this.name = name;
@@ -64,18 +125,15 @@ public class ExportSheet
     this.rows = new ArrayList<ExportRow>();
     final int lastRowNum = poiSheet.getLastRowNum();
     if (lastRowNum > 0) {
-      // poiSheet does already exists.
-      for (int i = poiSheet.getFirstRowNum(); i < poiSheet.getLastRowNum(); i++) {
-        Row poiRow = poiSheet.getRow(i);
-        if (poiRow == null) {
-          poiRow = poiSheet.createRow(i);
-        }
-        final ExportRow row = new ExportRow(contentProvider, this, poiRow, i);
-        rows.add(row);
+      // poiSheet does already exists, the rows are wrapped on first access.
+      firstPoiRowNum = poiSheet.getFirstRowNum();
+      for (int i = firstPoiRowNum; i < lastRowNum; i++) {
+        rows.add(null);
       }
+      unwrappedRows = lastRowNum - firstPoiRowNum;
     }
     final PrintSetup printSetup = getPrintSetup();
-    printSetup.setPaperSize(ExportConfig.getInstance().getDefaultPaperSizeId());
+    printSetup.setPaperSize(settings.getPaperSizeId());
   }
 
   /**
@@ -88,13 +146,7 @@ public class ExportSheet
       return;
     }
     // build all column names, title, widths from fixed and variable columns
-    final String[] colNames = new String[columns.size()];
-    final ExportRow headRow = addRow();
-    int idx = 0;
-    for (final ExportColumn col : columns) {
-      addHeadRowCell(headRow, col, colNames, idx++);
-    }
-    setPropertyNames(colNames);
+    setColumns(columns.toArray(new ExportColumn[columns.size()]));
   }
 
   /**
@@ -110,10 +162,15 @@ public class ExportSheet
     final String[] colNames = new String[columns.length];
     final ExportRow headRow = addRow();
     int idx = 0;
+    headRowValues = new Object[columns.length];
     for (final ExportColumn col : columns) {
+      headRowValues[idx] = col.getTitle();
       addHeadRowCell(headRow, col, colNames, idx++);
     }
     setPropertyNames(colNames);
+    if (contentProvider instanceof XlsContentProvider) {
+      ((XlsContentProvider) contentProvider).setColumns(columns);
+    }
   }
 
   private void addHeadRowCell(final ExportRow headRow, final ExportColumn col, final String[] colNames, final int idx) {
@@ -130,12 +187,112 @@ public class ExportSheet
 
   public ExportRow addRow()
   {
-    final Row poiRow = poiSheet.createRow(rowCounter);
-    final ExportRow row = new ExportRow(contentProvider, this, poiRow, rowCounter++);
+    if (maxRows > 0 && rowCounter - partRowOffset >= maxRows) {
+      rollover();
+    }
+    if (rowAccessWindowSize > 0) {
+      // The oldest row of the window will be flushed by the streaming workbook, so apply its styles before.
+      commitRows(getNumberOfRows() - rowAccessWindowSize + 1);
+    }
+    final int rowNum = rowCounter++ - partRowOffset;
+    final Row poiRow = poiSheet.createRow(rowNum);
+    final ExportRow row = new ExportRow(contentProvider, this, poiRow, rowNum);
     this.rows.add(row);
+    if (rows.size() + rowsOffset - releasedRows > peakRowsInMemory) {
+      peakRowsInMemory = rows.size() + rowsOffset - releasedRows;
+    }
     return row;
   }
 
+  /**
+   * Continues this sheet on a new poi sheet: all rows are committed and the sheet style (column widths) is applied to the full poi sheet.
+   * The new poi sheet gets the name of this sheet with the number of the part as suffix and the head row, the column widths and the freeze
+   * pane are repeated.
+   */
+  private void rollover()
+  {
+    commitRows();
+    if (contentProvider != null) {
+      contentProvider.updateSheetStyle(this);
+    }
+    ++part;
+    if (partPoiSheets == null) {
+      partPoiSheets = new ArrayList<Sheet>();
+      partPoiSheets.add(poiSheet);
+    }
+    poiSheet = workbook.createPoiSheet(name, part);
+    partPoiSheets.add(poiSheet);
+    log.info("Maximum number of rows (" + maxRows + ") of sheet '" + name + "' reached, continuing on sheet '" + poiSheet.getSheetName()
+        + "'.");
+    partRowOffset = rowCounter;
+    if (columnWidths != null) {
+      for (final Map.Entry<Integer, Integer> entry : columnWidths.entrySet()) {
+        poiSheet.setColumnWidth(entry.getKey(), entry.getValue());
+      }
+    }
+    if (freezeCol > 0 || freezeRow > 0) {
+      poiSheet.createFreezePane(freezeCol, freezeRow);
+    }
+    if (headRowValues != null) {
+      addRow(headRowValues);
+    }
+  }
+
+  /**
+   * @return The maximum number of rows per poi sheet or 0 if there is no limit.
+   */
+  public int getMaxRows()
+  {
+    return maxRows;
+  }
+
+  /**
+   * If the given number of rows is reached, further rows are added to a new poi sheet (rollover). The new sheet is named with the number
+   * of the part as suffix, e. g. "Timesheets (2)" (or the next free number if this name is already used), and the head row (see {@link #setColumns(ExportColumn...)}), the column widths and the
+   * freeze pane are repeated. Row numbers of this sheet (e. g. of {@link #getRow(int)}) are counted over all parts, whereas the row numbers
+   * of {@link ExportRow#getRowNum()} refer to the poi sheet of the row. <br/>
+   * Sheets added by {@link ExportWorkbook#addSheet(String)} are limited to the maximum number of rows of the workbook format.
+   * @param maxRows 0 for no limit.
+   * @return this for chaining.
+   * @see WorkbookFormat#getMaxRows()
+   */
+  public ExportSheet setMaxRows(final int maxRows)
+  {
+    if (maxRows > 0 && workbook == null) {
+      throw new IllegalStateException("Sheet '" + name + "' doesn't belong to an ExportWorkbook, rollover isn't supported.");
+    }
+    this.maxRows = maxRows;
+    return this;
+  }
+
+  /**
+   * @return The number of poi sheets (parts) used by this sheet.
+   * @see #setMaxRows(int)
+   */
+  public int getNumberOfParts()
+  {
+    return part;
+  }
+
+  /**
+   * @return The poi sheets of all parts of this sheet.
+   * @see #setMaxRows(int)
+   */
+  List<Sheet> getPoiSheets()
+  {
+    if (partPoiSheets == null) {
+      final List<Sheet> result = new ArrayList<Sheet>(1);
+      result.add(poiSheet);
+      return result;
+    }
+    return new ArrayList<Sheet>(partPoiSheets);
+  }
+
+  void setWorkbook(final ExportWorkbook workbook)
+  {
+    this.workbook = workbook;
+  }
+
   public ExportRow addRow(final Object... values)
   {
     final ExportRow row = addRow();
@@ -151,7 +308,7 @@ public class ExportSheet
   public ExportRow addRow(final Object rowBean, final int startCol)
   {
     final ExportRow row = addRow();
-    row.fillBean(rowBean, propertyNames, 0);
+    row.fillBean(rowBean, propertyPaths, 0);
     return row;
   }
 
@@ -184,9 +341,18 @@ public class ExportSheet
     return name;
   }
 
+  /**
+   * @param row
+   * @return The row.
+   * @throws IllegalStateException if the row was already committed and released.
+   * @see #commitRows(int)
+   */
   public ExportRow getRow(final int row)
   {
-    return this.rows.get(row);
+    if (row < releasedRows) {
+      throw new IllegalStateException("Row #" + row + " of sheet '" + name + "' was already committed and released.");
+    }
+    return getRowAt(row - rowsOffset);
   }
 
   /**
@@ -197,18 +363,58 @@ public class ExportSheet
     return rowCounter;
   }
 
+  /**
+   * @return A copy of all rows not yet released, so rows may be added while iterating.
+   * @see #commitRows(int)
+   */
   public List<ExportRow> getRows()
   {
-    return rows;
+    for (int i = releasedRows - rowsOffset; unwrappedRows > 0 && i < rows.size(); i++) {
+      getRowAt(i);
+    }
+    return new ArrayList<ExportRow>(rows.subList(releasedRows - rowsOffset, rows.size()));
+  }
+
+  /**
+   * @return The number of rows including the already released rows.
+   */
+  public int getNumberOfRows()
+  {
+    return rowsOffset + rows.size();
+  }
+
+  /**
+   * @return The number of added cells of all rows, including the committed and released rows.
+   */
+  public long getNumberOfCells()
+  {
+    long result = committedCells;
+    for (int i = committedRows - rowsOffset; i < rows.size(); i++) {
+      final ExportRow row = rows.get(i);
+      if (row != null) {
+        result += row.getNumberOfCells();
+      }
+    }
+    return result;
+  }
+
+  /**
+   * @return The maximum number of added rows held in memory by this sheet at the same time (see {@link #setReleaseCommittedRows(boolean)}).
+   */
+  public int getPeakRowsInMemory()
+  {
+    return peakRowsInMemory;
   }
 
   /**
-   * For filling the table via beans.
+   * For filling the table via beans. The (nested) property names are compiled once for all rows.
    * @param propertyNames
+   * @see PropertyPath
    */
   public void setPropertyNames(final String[] propertyNames)
   {
     this.propertyNames = propertyNames;
+    this.propertyPaths = PropertyPath.compile(propertyNames);
   }
 
   /**
@@ -220,16 +426,137 @@ public class ExportSheet
   }
 
   /**
+   * @return The compiled property names or null if not set.
+   * @see #setPropertyNames(String[])
+   */
+  public PropertyPath[] getPropertyPaths()
+  {
+    return propertyPaths;
+  }
+
+  /**
+   * Updates the sheet style and the styles of all rows not yet committed (rows already flushed by a streaming workbook are committed).
    * @see ExportRow#updateStyles(StyleProvider)
    */
   public void updateStyles()
   {
     if (contentProvider != null) {
       contentProvider.updateSheetStyle(this);
-      for (final ExportRow row : rows) {
+      if (contentProvider instanceof XlsContentProvider && ((XlsContentProvider) contentProvider).isInlineStyling() == true) {
+        // Cell styles are already applied.
+        return;
+      }
+      for (int i = committedRows - rowsOffset; i < rows.size(); i++) {
+        getRowAt(i).updateStyles(contentProvider);
+      }
+    }
+  }
+
+  /**
+   * Applies the styles of all not yet committed rows with an index lower than toRow. Committed rows are final: they're not touched again by
+   * {@link #updateStyles()}. If {@link #isReleaseCommittedRows()} is true, the committed rows are removed from this sheet for saving memory
+   * (the poi rows are kept by the poi sheet or are already flushed by streaming workbooks).
+   * @param toRow exclusive.
+   * @return this for chaining.
+   */
+  public ExportSheet commitRows(final int toRow)
+  {
+    final int numberOfRows = Math.min(toRow, getNumberOfRows());
+    while (committedRows < numberOfRows) {
+      final ExportRow row = getRowAt(committedRows++ - rowsOffset);
+      committedCells += row.getNumberOfCells();
+      if (contentProvider != null) {
         row.updateStyles(contentProvider);
       }
     }
+    if (isReleaseCommittedRows() == true) {
+      releaseCommittedRows();
+    }
+    return this;
+  }
+
+  /**
+   * Commits all rows added so far.
+   * @return this for chaining.
+   * @see #commitRows(int)
+   */
+  public ExportSheet commitRows()
+  {
+    return commitRows(getNumberOfRows());
+  }
+
+  /**
+   * Rows of existing poi sheets are wrapped on first access, so opening a workbook doesn't wrap all rows and cells.
+   * @param idx The index of the row in {@link #rows}.
+   * @return The row.
+   */
+  private ExportRow getRowAt(final int idx)
+  {
+    ExportRow row = rows.get(idx);
+    if (row == null && unwrappedRows > 0 && idx + rowsOffset >= releasedRows) {
+      final int rowNum = firstPoiRowNum + rowsOffset + idx;
+      Row poiRow = poiSheet.getRow(rowNum);
+      if (poiRow == null) {
+        poiRow = poiSheet.createRow(rowNum);
+      }
+      row = new ExportRow(contentProvider, this, poiRow, rowNum);
+      rows.set(idx, row);
+      --unwrappedRows;
+    }
+    return row;
+  }
+
+  private void releaseCommittedRows()
+  {
+    while (releasedRows < committedRows) {
+      rows.set(releasedRows++ - rowsOffset, null);
+    }
+    final int garbage = releasedRows - rowsOffset;
+    if (garbage > 0 && garbage >= rows.size() / 2) {
+      // Remove the released rows in one go (amortized O(1) per row).
+      rows.subList(0, garbage).clear();
+      rowsOffset = releasedRows;
+    }
+  }
+
+  /**
+   * @return true if committed rows are removed from this sheet. Always true for streaming sheets.
+   * @see #commitRows(int)
+   */
+  public boolean isReleaseCommittedRows()
+  {
+    return releaseCommittedRows == true || rowAccessWindowSize > 0;
+  }
+
+  /**
+   * If true, committed rows are removed from this sheet. So the memory of the rows and cell wrappers depends only on the number of not yet
+   * committed rows. Released rows can't be accessed anymore.
+   * @param releaseCommittedRows
+   * @return this for chaining.
+   * @see #commitRows(int)
+   */
+  public ExportSheet setReleaseCommittedRows(final boolean releaseCommittedRows)
+  {
+    this.releaseCommittedRows = releaseCommittedRows;
+    return this;
+  }
+
+  /**
+   * @return The number of rows hold in memory by a streaming workbook or 0 if all rows are kept in memory.
+   */
+  public int getRowAccessWindowSize()
+  {
+    return rowAccessWindowSize;
+  }
+
+  /**
+   * Should be equal to the row access window size of the streaming workbook: rows leaving this window are styled before they are flushed.
+   * @param rowAccessWindowSize 0 if all rows are kept in memory (default).
+   * @see ExportWorkbook#ExportWorkbook(int)
+   */
+  public void setRowAccessWindowSize(final int rowAccessWindowSize)
+  {
+    this.rowAccessWindowSize = rowAccessWindowSize;
   }
 
   public ContentProvider getContentProvider()
@@ -245,6 +572,10 @@ public class ExportSheet
   public void setColumnWidth(final int col, final int width)
   {
     poiSheet.setColumnWidth(col, width);
+    if (columnWidths == null) {
+      columnWidths = new HashMap<Integer, Integer>();
+    }
+    columnWidths.put(col, width);
   }
 
   /**
@@ -256,6 +587,8 @@ public class ExportSheet
   public void createFreezePane(final int toCol, final int toRow)
   {
     poiSheet.createFreezePane(toCol, toRow);
+    this.freezeCol = toCol;
+    this.freezeRow = toRow;
   }
 
   /**
@@ -269,22 +602,37 @@ public class ExportSheet
   }
 
   /**
-   * Merges cells and sets the value.
+   * Merges cells and sets the value. The row numbers are counted over all parts, the region has to be part of the current poi sheet.
    * @param firstRow
    * @param lastRow
    * @param firstCol
    * @param lastCol
    * @param value
+   * @throws IllegalArgumentException if the region doesn't fit into the current poi sheet (part).
+   * @throws IllegalStateException if the first row was already released (e. g. flushed by a streaming sheet), so call this method before.
+   * @see #setMaxRows(int)
    */
   public ExportCell setMergedRegion(final int firstRow, final int lastRow, final int firstCol, final int lastCol, final Object value)
   {
-    final CellRangeAddress region = new CellRangeAddress(firstRow, lastRow, firstCol, lastCol);
+    if (firstRow < releasedRows) {
+      throw new IllegalStateException("Can't merge cells of sheet '" + name + "', row #" + firstRow
+          + " was already committed and released.");
+    }
+    if (firstRow < partRowOffset || maxRows > 0 && lastRow - partRowOffset >= maxRows) {
+      throw new IllegalArgumentException("Merged region of rows #" + firstRow + "-#" + lastRow + " of sheet '" + name
+          + "' doesn't fit into the current poi sheet (part " + part + ", beginning with row #" + partRowOffset + ").");
+    }
+    final CellRangeAddress region = new CellRangeAddress(firstRow - partRowOffset, lastRow - partRowOffset, firstCol, lastCol);
     poiSheet.addMergedRegion(region);
     final ExportRow row = getRow(firstRow);
     final ExportCell cell = row.addCell(firstCol, value);
     return cell;
   }
 
+  /**
+   * @return The current poi sheet (the last part if this sheet was continued on further poi sheets).
+   * @see #setMaxRows(int)
+   */
   public Sheet getPoiSheet()
   {
     return poiSheet;
@@ -292,13 +640,23 @@ public class ExportSheet
 
   /**
    * Set auto-filter for the whole first row. Maximum number of supported cells is 26 (A1:Z1)! Must be called after adding the first row
-   * with all heading cells.
+   * with all heading cells. If the first row was already released (e. g. flushed by a streaming sheet), the columns set by
+   * {@link #setColumns(ExportColumn...)} are used.
    * @return this for chaining.
+   * @throws IllegalStateException if the first row was already released and no columns were set.
    */
   public ExportSheet setAutoFilter()
   {
-    final ExportRow row = getRow(0);
-    int numberOfCols = row.getMaxCol();
+    int numberOfCols;
+    if (releasedRows > 0) {
+      if (headRowValues == null) {
+        throw new IllegalStateException("Can't set auto-filter of sheet '" + name
+            + "', the first row was already committed and released, call setAutoFilter before.");
+      }
+      numberOfCols = headRowValues.length - 1;
+    } else {
+      numberOfCols = getRow(0).getMaxCol();
+    }
     if (numberOfCols > 26) {
       log.warn("#setAutoFilter supports only up to 26 columns! " + numberOfCols + " exceeds 26.");
       numberOfCols = 26;
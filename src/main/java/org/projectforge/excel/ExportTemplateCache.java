@@ -0,0 +1,375 @@
+/////////////////////////////////////////////////////////////////////////////
+//
+// Project ProjectForge Community Edition
+//         www.projectforge.org
+//
+// Copyright (C) 2001-2014 Kai Reinhard (k.reinhard@micromata.de)
+//
+// ProjectForge is dual-licensed.
+//
+// This community edition is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License as published
+// by the Free Software Foundation; version 3 of the License.
+//
+// This community edition is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+// Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with this program; if not, see http://www.gnu.org/licenses/.
+//
+/////////////////////////////////////////////////////////////////////////////
+
+package org.projectforge.excel;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+import org.apache.poi.poifs.filesystem.POIFSFileSystem;
+
+/**
+ * Caches parsed workbook templates (e. g. of invoices) used for many exports. Every template is read once from its source and parsed
+ * ahead of the requests: the cache holds a small pool of parsed workbooks per template which is refilled in the background, so
+ * {@link #getWorkbook(String, long, TemplateSource)} usually hands out an independent, already parsed workbook without parsing on the
+ * calling thread. The container (POI file system) of xls templates is parsed only once and shared by all workbooks of the template (read
+ * only). The least recently used templates are evicted if the total size of the cached templates exceeds the maximum size.
+ */
+public class ExportTemplateCache
+{
+  private static final org.projectforge.common.Logger log = org.projectforge.common.Logger.getLogger(ExportTemplateCache.class);
+
+  /**
+   * Opens the content of a template.
+   */
+  public interface TemplateSource
+  {
+    /**
+     * @return The stream of the template, will be closed by the cache.
+     * @throws IOException
+     */
+    public InputStream open() throws IOException;
+  }
+
+  private final long maxSize;
+
+  private final int poolSize;
+
+  private Executor executor;
+
+  /** Templates by key in access order (least recently used first). */
+  private final LinkedHashMap<String, Template> templates = new LinkedHashMap<String, Template>(16, 0.75f, true);
+
+  private long size;
+
+  private final AtomicLong hits = new AtomicLong();
+
+  private final AtomicLong misses = new AtomicLong();
+
+  private final AtomicLong reads = new AtomicLong();
+
+  private final AtomicLong evictions = new AtomicLong();
+
+  /**
+   * Holds two parsed workbooks per template, refilled by a daemon thread of this cache.
+   * @param maxSize The maximum total size of the cached templates in bytes.
+   */
+  public ExportTemplateCache(final long maxSize)
+  {
+    this(maxSize, 2, null);
+  }
+
+  /**
+   * @param maxSize The maximum total size of the cached templates in bytes.
+   * @param poolSize The number of parsed workbooks held per template, 0 for parsing on every request (only the content and the container
+   *          of xls templates are cached).
+   * @param executor Used for refilling the pools, if null a daemon thread is created on first use.
+   */
+  public ExportTemplateCache(final long maxSize, final int poolSize, final Executor executor)
+  {
+    this.maxSize = maxSize;
+    this.poolSize = poolSize;
+    this.executor = executor;
+  }
+
+  /**
+   * @param key The identity of the template, e. g. its file name.
+   * @param version The version of the template, e. g. the last modification time of its file. If the version differs from the cached one,
+   *          the template is read again.
+   * @param source Used for reading the template if not cached.
+   * @return A new workbook of the template (modifications don't affect the cached template).
+   * @throws IOException
+   */
+  public ExportWorkbook getWorkbook(final String key, final long version, final TemplateSource source) throws IOException
+  {
+    final Template template = getTemplate(key, version, source);
+    ExportWorkbook workbook = template.workbooks.poll();
+    if (workbook != null) {
+      hits.incrementAndGet();
+    } else {
+      misses.incrementAndGet();
+      workbook = template.parse();
+    }
+    refill(template);
+    return workbook;
+  }
+
+  private Template getTemplate(final String key, final long version, final TemplateSource source) throws IOException
+  {
+    synchronized (templates) {
+      final Template template = templates.get(key);
+      if (template != null && template.version == version) {
+        return template;
+      }
+    }
+    reads.incrementAndGet();
+    final Template template = new Template(version, read(source));
+    synchronized (templates) {
+      final Template old = templates.put(key, template);
+      if (old != null) {
+        remove(old);
+      }
+      size += template.content.length;
+      evict();
+    }
+    return template;
+  }
+
+  /**
+   * Parses workbooks of the given template in the background until its pool is full.
+   */
+  private void refill(final Template template)
+  {
+    while (template.removed == false && template.workbooks.size() + template.pending.get() < poolSize) {
+      template.pending.incrementAndGet();
+      try {
+        getExecutor().execute(new Runnable() {
+          @Override
+          public void run()
+          {
+            try {
+              if (template.removed == false) {
+                template.workbooks.offer(template.parse());
+              }
+            } catch (final Exception ex) {
+              log.error("Can't parse template: " + ex.getMessage(), ex);
+            } finally {
+              template.pending.decrementAndGet();
+            }
+          }
+        });
+      } catch (final RejectedExecutionException ex) {
+        template.pending.decrementAndGet();
+        log.warn("Can't refill the parsed workbooks of a template: " + ex.getMessage());
+        return;
+      }
+    }
+  }
+
+  private synchronized Executor getExecutor()
+  {
+    if (executor == null) {
+      executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        private final AtomicInteger counter = new AtomicInteger();
+
+        @Override
+        public Thread newThread(final Runnable runnable)
+        {
+          final Thread thread = new Thread(runnable, "excel-template-" + counter.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+    return executor;
+  }
+
+  /**
+   * Removes the least recently used templates until the total size fits.
+   */
+  private void evict()
+  {
+    final Iterator<Map.Entry<String, Template>> it = templates.entrySet().iterator();
+    while (size > maxSize && it.hasNext() == true) {
+      final Map.Entry<String, Template> entry = it.next();
+      remove(entry.getValue());
+      it.remove();
+      evictions.incrementAndGet();
+      if (log.isDebugEnabled() == true) {
+        log.debug("Template '" + entry.getKey() + "' evicted from cache.");
+      }
+    }
+  }
+
+  /**
+   * Releases the parsed workbooks of the given template (removed from the map by the caller).
+   */
+  private void remove(final Template template)
+  {
+    size -= template.content.length;
+    template.removed = true;
+    template.workbooks.clear();
+  }
+
+  private byte[] read(final TemplateSource source) throws IOException
+  {
+    final InputStream is = source.open();
+    try {
+      final ByteArrayOutputStream baos = new ByteArrayOutputStream(64 * 1024);
+      final byte[] buffer = new byte[8192];
+      int n;
+      while ((n = is.read(buffer)) != -1) {
+        baos.write(buffer, 0, n);
+      }
+      return baos.toByteArray();
+    } finally {
+      is.close();
+    }
+  }
+
+  /**
+   * @param key
+   * @return this for chaining.
+   */
+  public ExportTemplateCache invalidate(final String key)
+  {
+    synchronized (templates) {
+      final Template old = templates.remove(key);
+      if (old != null) {
+        remove(old);
+      }
+    }
+    return this;
+  }
+
+  public void clear()
+  {
+    synchronized (templates) {
+      for (final Template template : templates.values()) {
+        remove(template);
+      }
+      templates.clear();
+      size = 0;
+    }
+  }
+
+  /**
+   * @return The number of cached templates.
+   */
+  public int getNumberOfTemplates()
+  {
+    synchronized (templates) {
+      return templates.size();
+    }
+  }
+
+  /**
+   * @return The total size of the cached templates in bytes (without the parsed workbooks).
+   */
+  public long getSize()
+  {
+    synchronized (templates) {
+      return size;
+    }
+  }
+
+  public long getMaxSize()
+  {
+    return maxSize;
+  }
+
+  public int getPoolSize()
+  {
+    return poolSize;
+  }
+
+  /**
+   * @return The number of requests served by an already parsed workbook.
+   */
+  public long getHits()
+  {
+    return hits.get();
+  }
+
+  /**
+   * @return The number of requests the workbook was parsed for on the calling thread (pool empty).
+   */
+  public long getMisses()
+  {
+    return misses.get();
+  }
+
+  /**
+   * @return The number of templates read from their source (not cached or other version).
+   */
+  public long getReads()
+  {
+    return reads.get();
+  }
+
+  /**
+   * @return The number of templates removed because the maximum size was exceeded.
+   */
+  public long getEvictions()
+  {
+    return evictions.get();
+  }
+
+  @Override
+  public String toString()
+  {
+    return "templates=" + getNumberOfTemplates() + ", size=" + getSize() + ", hits=" + getHits() + ", misses=" + getMisses() + ", reads="
+        + getReads() + ", evictions=" + getEvictions();
+  }
+
+  private static class Template
+  {
+    private final long version;
+
+    private final byte[] content;
+
+    /** The parsed container of xls templates, null for xlsx templates. */
+    private final POIFSFileSystem fileSystem;
+
+    /** The parsed workbooks ready to be handed out. */
+    private final Queue<ExportWorkbook> workbooks = new ConcurrentLinkedQueue<ExportWorkbook>();
+
+    /** Number of workbooks being parsed in the background. */
+    private final AtomicInteger pending = new AtomicInteger();
+
+    private volatile boolean removed;
+
+    private Template(final long version, final byte[] content) throws IOException
+    {
+      this.version = version;
+      this.content = content;
+      final InputStream is = new ByteArrayInputStream(content);
+      this.fileSystem = POIFSFileSystem.hasPOIFSHeader(is) == true ? new POIFSFileSystem(is) : null;
+    }
+
+    /**
+     * @return A new workbook of this template. Xls workbooks are created of the shared container without reading it again.
+     */
+    private ExportWorkbook parse() throws IOException
+    {
+      if (fileSystem != null) {
+        return new ExportWorkbook(new HSSFWorkbook(fileSystem.getRoot(), true), ExportSettings.getDefault());
+      }
+      return new ExportWorkbook(content);
+    }
+  }
+}
@@ -23,31 +23,47 @@
 
 package org.projectforge.excel;
 
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.commons.lang.StringUtils;
-import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+import org.apache.poi.openxml4j.exceptions.InvalidFormatException;
 import org.apache.poi.ss.usermodel.CellStyle;
 import org.apache.poi.ss.usermodel.CreationHelper;
 import org.apache.poi.ss.usermodel.Font;
 import org.apache.poi.ss.usermodel.Sheet;
 import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.ss.usermodel.WorkbookFactory;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
 
 public class ExportWorkbook
 {
   private static final org.projectforge.common.Logger log = org.projectforge.common.Logger.getLogger(ExportWorkbook.class);
 
+  private static final int BUFFER_SIZE = 64 * 1024;
+
   private Workbook poiWorkbook;
 
   private List<ExportSheet> sheets;
@@ -62,10 +78,77 @@ public class ExportWorkbook
 
   private final Map<String, Short> dataFormats = new HashMap<String, Short>();
 
+  private final CellFormatPool cellFormatPool = new CellFormatPool();
+
+  private final Object poiLock = new Object();
+
+  private final CellStyleRegistry cellStyleRegistry;
+
+  private volatile WorkbookDefaults defaults;
+
+  private ExportListener listener;
+
+  private final WorkbookFormat format;
+
+  private final ExportSettings settings;
+
+  private int rowAccessWindowSize = 0;
+
+  /**
+   * Creates a new workbook in xls format.
+   */
   public ExportWorkbook()
   {
+    this(WorkbookFormat.XLS);
+  }
+
+  /**
+   * Creates a streaming workbook (xlsx format). Only the last rowAccessWindowSize rows of each sheet are hold in memory, older rows are
+   * styled and flushed to temporary files. So the memory consumption doesn't depend on the number of exported rows. <br/>
+   * Please note: Rows outside the window can't be modified anymore and the workbook can only be written once.
+   * @param rowAccessWindowSize Number of rows per sheet kept in memory, 0 for {@link SXSSFWorkbook#DEFAULT_WINDOW_SIZE}.
+   * @see WorkbookFormat#XLSX_STREAMING
+   */
+  public ExportWorkbook(final int rowAccessWindowSize)
+  {
+    this(WorkbookFormat.XLSX_STREAMING, rowAccessWindowSize);
+  }
+
+  /**
+   * Creates a new workbook of the given format. Streaming workbooks use the default row access window size.
+   * @param format
+   */
+  public ExportWorkbook(final WorkbookFormat format)
+  {
+    this(format, 0);
+  }
+
+  /**
+   * @param format
+   * @param rowAccessWindowSize Number of rows per sheet kept in memory by streaming workbooks, 0 for the default window size. Ignored by
+   *          other formats.
+   */
+  public ExportWorkbook(final WorkbookFormat format, final int rowAccessWindowSize)
+  {
+    this(format, rowAccessWindowSize, ExportSettings.getDefault());
+  }
+
+  /**
+   * @param format
+   * @param rowAccessWindowSize Number of rows per sheet kept in memory by streaming workbooks, 0 for the default window size. Ignored by
+   *          other formats.
+   * @param settings The configuration of this export, used instead of {@link ExportConfig#getInstance()}.
+   */
+  public ExportWorkbook(final WorkbookFormat format, final int rowAccessWindowSize, final ExportSettings settings)
+  {
+    this.format = format;
+    this.settings = settings;
     sheets = new ArrayList<ExportSheet>();
-    poiWorkbook = new HSSFWorkbook();
+    poiWorkbook = format.createWorkbook(rowAccessWindowSize);
+    cellStyleRegistry = createCellStyleRegistry();
+    if (format.isStreaming() == true) {
+      this.rowAccessWindowSize = rowAccessWindowSize > 0 ? rowAccessWindowSize : SXSSFWorkbook.DEFAULT_WINDOW_SIZE;
+    }
   }
 
   public ExportWorkbook(final File excelFile) throws FileNotFoundException, IOException
@@ -78,20 +161,75 @@ public class ExportWorkbook
     this(new ByteArrayInputStream(excelFile));
   }
 
+  /**
+   * Reads the given workbook, the format (xls or xlsx) is detected automatically. The stream will be closed by this method.
+   * @param is
+   * @throws IOException
+   */
   public ExportWorkbook(final InputStream is) throws IOException
+  {
+    this(is, null);
+  }
+
+  /**
+   * Reads the given workbook. The stream will be closed by this method.
+   * @param is
+   * @param format The format of the given workbook. If null, the format is detected automatically. Streamed formats are read as
+   *          {@link WorkbookFormat#XLSX}.
+   * @throws IOException
+   */
+  public ExportWorkbook(final InputStream is, final WorkbookFormat format) throws IOException
+  {
+    this(is, format, ExportSettings.getDefault());
+  }
+
+  /**
+   * Reads the given workbook. The stream will be closed by this method.
+   * @param is
+   * @param format The format of the given workbook. If null, the format is detected automatically.
+   * @param settings The configuration of this export, used instead of {@link ExportConfig#getInstance()}.
+   * @throws IOException
+   */
+  public ExportWorkbook(final InputStream is, final WorkbookFormat format, final ExportSettings settings) throws IOException
+  {
+    this(readWorkbook(is, format), settings);
+  }
+
+  /**
+   * Wraps the sheets of the given (already read) poi workbook.
+   * @param poiWorkbook
+   * @param settings
+   */
+  ExportWorkbook(final Workbook poiWorkbook, final ExportSettings settings)
+  {
+    this.settings = settings;
+    this.poiWorkbook = poiWorkbook;
+    this.format = WorkbookFormat.of(poiWorkbook);
+    cellStyleRegistry = createCellStyleRegistry();
+    final int no = poiWorkbook.getNumberOfSheets();
+    sheets = new ArrayList<ExportSheet>(no);
+    for (int i = 0; i < no; i++) {
+      final Sheet sh = poiWorkbook.getSheetAt(i);
+      final XlsContentProvider cp = (XlsContentProvider) settings.createNewContentProvider(this);
+      cp.setAutoFormatCells(false);
+      final ExportSheet sheet = new ExportSheet(cp, poiWorkbook.getSheetName(i), sh, settings);
+      sheet.setImported(true);
+      addSheet(sheet);
+    }
+  }
+
+  /**
+   * Reads the given workbook and closes the stream.
+   */
+  private static Workbook readWorkbook(final InputStream is, final WorkbookFormat format) throws IOException
   {
     try {
-      poiWorkbook = new HSSFWorkbook(is, true);
-      final int no = poiWorkbook.getNumberOfSheets();
-      sheets = new ArrayList<ExportSheet>(no);
-      for (int i = 0; i < no; i++) {
-        final Sheet sh = poiWorkbook.getSheetAt(i);
-        final XlsContentProvider cp = (XlsContentProvider) ExportConfig.getInstance().createNewContentProvider(this);
-        cp.setAutoFormatCells(false);
-        final ExportSheet sheet = new ExportSheet(cp, poiWorkbook.getSheetName(i), sh);
-        sheet.setImported(true);
-        sheets.add(sheet);
+      if (format != null) {
+        return format.readWorkbook(is);
       }
+      return WorkbookFactory.create(is);
+    } catch (final InvalidFormatException ex) {
+      throw new IOException("Unsupported workbook format: " + ex.getMessage(), ex);
     } finally {
       if (is != null) {
         is.close();
@@ -99,6 +237,15 @@ public class ExportWorkbook
     }
   }
 
+  /**
+   * The styles already contained by the workbook (e. g. of a template) are subtracted from the limit of the format.
+   */
+  private CellStyleRegistry createCellStyleRegistry()
+  {
+    final int existingStyles = poiWorkbook.getNumCellStyles() & 0xFFFF;
+    return new CellStyleRegistry(poiLock, Math.max(1, format.getMaxCellStyles() - existingStyles));
+  }
+
   /**
    * The file name is ignored by the ExportWorkbook itself. The file name should be used by the caller to create a name for the generated
    * Excel file.
@@ -134,37 +281,193 @@ public class ExportWorkbook
   }
 
   /**
-   * Calls updateStyles first. The OutputStream will be closed by this method.
+   * Calls updateStyles first. The OutputStream will be closed by this method. The temporary files of streaming workbooks are deleted
+   * afterwards.
    * @param out
    * @throws IOException
    * @see #updateStyles()
    */
   public void write(final OutputStream out) throws IOException
   {
-    updateStyles();
     try {
-      poiWorkbook.write(out);
+      writeTo(out);
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * Calls updateStyles first. The channel isn't closed by this method, so further content may be written to it. The temporary files of
+   * streaming workbooks are deleted afterwards.
+   * @param channel
+   * @throws IOException
+   */
+  public void write(final WritableByteChannel channel) throws IOException
+  {
+    final OutputStream out = new BufferedOutputStream(new NonClosingOutputStream(Channels.newOutputStream(channel)), BUFFER_SIZE);
+    writeTo(out);
+    out.flush();
+  }
+
+  /**
+   * Writes this workbook to a new temporary file, e. g. for serving large downloads via {@link #transferTo(File, WritableByteChannel)}
+   * without holding the file content in the heap. The caller is responsible for deleting the file.
+   * @return The written file.
+   * @throws IOException
+   */
+  public File writeToTempFile() throws IOException
+  {
+    final File file = File.createTempFile("export-", "." + format.getFileExtension());
+    boolean success = false;
+    try {
+      write(new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE));
+      success = true;
+    } finally {
+      if (success == false) {
+        file.delete();
+      }
+    }
+    return file;
+  }
+
+  /**
+   * Transfers the content of the given file to the target channel (e. g. the channel of a servlet response) by
+   * {@link FileChannel#transferTo(long, long, WritableByteChannel)}, so the operating system may copy the data directly. The target
+   * isn't closed.
+   * @param file
+   * @param target
+   * @return The number of bytes transferred.
+   * @throws IOException
+   * @see #writeToTempFile()
+   */
+  public static long transferTo(final File file, final WritableByteChannel target) throws IOException
+  {
+    final FileInputStream in = new FileInputStream(file);
+    try {
+      final FileChannel channel = in.getChannel();
+      final long size = channel.size();
+      long position = 0;
+      while (position < size) {
+        position += channel.transferTo(position, size - position, target);
+      }
+      return size;
+    } finally {
+      in.close();
+    }
+  }
+
+  private void writeTo(final OutputStream out) throws IOException
+  {
+    final ExportListener listener = this.listener;
+    long start = listener != null ? System.nanoTime() : 0;
+    try {
+      updateStyles();
+      if (listener != null) {
+        listener.phaseFinished(ExportPhase.STYLING, System.nanoTime() - start);
+        start = System.nanoTime();
+        final CountingOutputStream counter = new CountingOutputStream(out);
+        poiWorkbook.write(counter);
+        listener.phaseFinished(ExportPhase.SERIALIZATION, System.nanoTime() - start);
+        listener.workbookWritten(this, counter.getCount());
+      } else {
+        poiWorkbook.write(out);
+      }
       if (log.isDebugEnabled() == true) {
         log.info("Excel sheet exported: number of cell styles="
             + this.numberOfCellStyles
             + ", number of data formats="
-            + this.numberOfDataFormats);
+            + this.numberOfDataFormats
+            + ", re-used cell styles="
+            + cellStyleRegistry.getHits()
+            + ", cell styles of similar formats="
+            + cellStyleRegistry.getFallbacks());
       }
     } finally {
-      out.close();
+      dispose();
+    }
+  }
+
+  /**
+   * Deletes the temporary files of a streaming workbook. Does nothing for other workbooks. Is called automatically by
+   * {@link #write(OutputStream)}, call it yourself if you discard a streaming workbook without writing it.
+   */
+  public void dispose()
+  {
+    if (poiWorkbook instanceof SXSSFWorkbook) {
+      ((SXSSFWorkbook) poiWorkbook).dispose();
     }
   }
 
+  /**
+   * @return The configuration of this export.
+   */
+  public ExportSettings getSettings()
+  {
+    return settings;
+  }
+
+  /**
+   * @return The format (and poi implementation) of this workbook.
+   */
+  public WorkbookFormat getFormat()
+  {
+    return format;
+  }
+
+  /**
+   * @return true if this workbook is a streaming workbook.
+   * @see WorkbookFormat#isStreaming()
+   */
+  public boolean isStreaming()
+  {
+    return format.isStreaming();
+  }
+
+  /**
+   * @return The number of rows per sheet hold in memory or 0 if all rows are kept in memory (not streaming).
+   */
+  public int getRowAccessWindowSize()
+  {
+    return rowAccessWindowSize;
+  }
+
   public byte[] getAsByteArray()
   {
-    final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    return getAsByteArray(BUFFER_SIZE);
+  }
+
+  /**
+   * @param expectedSize The initial size of the buffer. If the size of the written workbook matches, the buffer is returned without
+   *          copying.
+   * @return The written workbook.
+   */
+  public byte[] getAsByteArray(final int expectedSize)
+  {
+    final Buffer buffer = writeToBuffer(expectedSize);
+    return buffer.size() == buffer.getBuffer().length ? buffer.getBuffer() : buffer.toByteArray();
+  }
+
+  /**
+   * Like {@link #getAsByteArray(int)}, but the returned buffer wraps the written bytes without copying.
+   * @param expectedSize The initial size of the buffer.
+   * @return The written workbook (read-only).
+   */
+  public ByteBuffer getAsByteBuffer(final int expectedSize)
+  {
+    final Buffer buffer = writeToBuffer(expectedSize);
+    return ByteBuffer.wrap(buffer.getBuffer(), 0, buffer.size()).asReadOnlyBuffer();
+  }
+
+  private Buffer writeToBuffer(final int expectedSize)
+  {
+    final Buffer buffer = new Buffer(Math.max(expectedSize, 32));
     try {
-      write(baos);
+      write(buffer);
     } catch (final IOException ex) {
       log.fatal("Exception encountered " + ex, ex);
       throw new RuntimeException(ex);
     }
-    return baos.toByteArray();
+    return buffer;
   }
 
   public ExportSheet addSheet(final String name)
@@ -183,23 +486,189 @@ public class ExportWorkbook
     if (name.length() >= ExportSheet.MAX_XLS_SHEETNAME_LENGTH) {
       title = StringUtils.abbreviate(name, ExportSheet.MAX_XLS_SHEETNAME_LENGTH);
     }
-    final Sheet poiSheet = poiWorkbook.createSheet(title);
     ContentProvider cp = getContentProvider();
     if (contentProvider != null) {
       cp = contentProvider;
     } else {
-      cp = ExportConfig.getInstance().createNewContentProvider(this);
+      cp = settings.createNewContentProvider(this);
     }
-    final ExportSheet sheet = new ExportSheet(cp, name, poiSheet);
+    synchronized (poiLock) {
+      final Sheet poiSheet = poiWorkbook.createSheet(title);
+      return addSheet(new ExportSheet(cp, name, poiSheet, settings));
+    }
+  }
+
+  /**
+   * Binds the given sheet to this workbook (row access window, maximum number of rows per poi sheet) and adds it.
+   * @param sheet
+   * @return The given sheet.
+   */
+  private ExportSheet addSheet(final ExportSheet sheet)
+  {
+    sheet.setRowAccessWindowSize(rowAccessWindowSize);
+    sheet.setWorkbook(this);
+    sheet.setMaxRows(format.getMaxRows());
     sheets.add(sheet);
     return sheet;
   }
 
+  /**
+   * Creates a further poi sheet for an export sheet exceeding its maximum number of rows. The poi sheet is named with the number of the
+   * part as suffix or, if this name is already used, with the next free number.
+   * @param name The name of the export sheet.
+   * @param part The number of the part.
+   * @see ExportSheet#setMaxRows(int)
+   */
+  Sheet createPoiSheet(final String name, final int part)
+  {
+    synchronized (poiLock) {
+      for (int number = part;; number++) {
+        final String suffix = " (" + number + ")";
+        String partName = name + suffix;
+        if (partName.length() > ExportSheet.MAX_XLS_SHEETNAME_LENGTH) {
+          partName = name.substring(0, ExportSheet.MAX_XLS_SHEETNAME_LENGTH - suffix.length()) + suffix;
+        }
+        if (poiWorkbook.getSheetIndex(partName) < 0) {
+          return poiWorkbook.createSheet(partName);
+        }
+      }
+    }
+  }
+
+  /**
+   * Adds a sheet for every filler (in the order of the given map) and fills the sheets concurrently, one thread per sheet up to the number
+   * of available processors.
+   * @param fillers The fillers by sheet name.
+   * @return The added sheets.
+   * @see #addSheets(ExecutorService, Map)
+   */
+  public List<ExportSheet> addSheets(final Map<String, ? extends SheetFiller> fillers)
+  {
+    final int nThreads = Math.max(1, Math.min(fillers.size(), Runtime.getRuntime().availableProcessors()));
+    final ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+    try {
+      return addSheets(executor, fillers);
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  /**
+   * Adds a sheet for every filler (in the order of the given map) and fills the sheets concurrently by the given executor. Returns after all
+   * sheets are filled. <br/>
+   * Poi isn't thread-safe, so the writes to the poi workbook (values, cell styles, fonts and data formats) are serialized, whereas the
+   * fillers load and convert the data of their sheets in parallel. Every sheet uses its own content provider (don't share a content
+   * provider between these sheets). The cell styles of the sheets are created before writing the workbook as usual.
+   * @param executor
+   * @param fillers The fillers by sheet name.
+   * @return The added sheets.
+   * @throws RuntimeException if any filler fails (after all fillers are finished).
+   */
+  public List<ExportSheet> addSheets(final ExecutorService executor, final Map<String, ? extends SheetFiller> fillers)
+  {
+    final List<ExportSheet> result = new ArrayList<ExportSheet>(fillers.size());
+    final List<Future< ? >> futures = new ArrayList<Future< ? >>(fillers.size());
+    for (final Map.Entry<String, ? extends SheetFiller> entry : fillers.entrySet()) {
+      final ExportSheet sheet = addSheet(entry.getKey());
+      final SheetFiller filler = entry.getValue();
+      result.add(sheet);
+      futures.add(executor.submit(new Callable<Void>() {
+        @Override
+        public Void call() throws Exception
+        {
+          filler.fill(sheet);
+          return null;
+        }
+      }));
+    }
+    Throwable failure = null;
+    for (int i = 0; i < futures.size(); i++) {
+      try {
+        futures.get(i).get();
+      } catch (final InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        throw new RuntimeException("Interrupted while filling sheet '" + result.get(i).getName() + "'.", ex);
+      } catch (final ExecutionException ex) {
+        log.error("Exception encountered while filling sheet '" + result.get(i).getName() + "': " + ex.getCause(), ex.getCause());
+        if (failure == null) {
+          failure = ex.getCause();
+        }
+      }
+    }
+    if (failure != null) {
+      throw new RuntimeException("Can't fill sheets: " + failure.getMessage(), failure);
+    }
+    return result;
+  }
+
   public int getNumberOfSheets()
   {
     return sheets.size();
   }
 
+  /**
+   * @return The number of rows of all sheets.
+   */
+  public long getNumberOfRows()
+  {
+    long result = 0;
+    for (final ExportSheet sheet : sheets) {
+      result += sheet.getNumberOfRows();
+    }
+    return result;
+  }
+
+  /**
+   * @return The number of added cells of all sheets.
+   */
+  public long getNumberOfCells()
+  {
+    long result = 0;
+    for (final ExportSheet sheet : sheets) {
+      result += sheet.getNumberOfCells();
+    }
+    return result;
+  }
+
+  /**
+   * @return The sum of the maximum numbers of rows held in memory by the sheets.
+   * @see ExportSheet#getPeakRowsInMemory()
+   */
+  public long getPeakRowsInMemory()
+  {
+    long result = 0;
+    for (final ExportSheet sheet : sheets) {
+      result += sheet.getPeakRowsInMemory();
+    }
+    return result;
+  }
+
+  /**
+   * @return The number of fonts of the poi workbook.
+   */
+  public int getNumberOfFonts()
+  {
+    synchronized (poiLock) {
+      return poiWorkbook.getNumberOfFonts() & 0xFFFF;
+    }
+  }
+
+  /**
+   * @param listener Is informed about the durations of the phases and the counts of each export of this workbook, null for none.
+   * @return this for chaining.
+   * @see ExportMetrics
+   */
+  public ExportWorkbook setListener(final ExportListener listener)
+  {
+    this.listener = listener;
+    return this;
+  }
+
+  public ExportListener getListener()
+  {
+    return listener;
+  }
+
   public ExportSheet getSheet(final int index)
   {
     return sheets.get(index);
@@ -217,45 +686,65 @@ public class ExportWorkbook
 
   /**
    * Clones the current sheet.
+   * @param sheetNum The index of the export sheet (see {@link #getSheet(int)}), which may differ from the index of its poi sheet.
+   * @throws IllegalStateException if the sheet was continued on further poi sheets.
    * @see Workbook#cloneSheet(int)
+   * @see ExportSheet#setMaxRows(int)
    */
   public ExportSheet cloneSheet(final int sheetNum, final String name)
   {
     final ExportSheet originSheet = getSheet(sheetNum);
-    final Sheet poiSheet = this.poiWorkbook.cloneSheet(sheetNum);
-    this.poiWorkbook.setSheetName(sheets.size(), name);
+    if (originSheet.getNumberOfParts() > 1) {
+      throw new IllegalStateException("Sheet '" + originSheet.getName() + "' was continued on further poi sheets, it can't be cloned.");
+    }
+    final Sheet poiSheet;
+    synchronized (poiLock) {
+      poiSheet = this.poiWorkbook.cloneSheet(this.poiWorkbook.getSheetIndex(originSheet.getPoiSheet()));
+      this.poiWorkbook.setSheetName(this.poiWorkbook.getSheetIndex(poiSheet), name);
+    }
     ContentProvider cp = getContentProvider();
     if (contentProvider != null) {
       cp = contentProvider;
     } else {
-      cp = ExportConfig.getInstance().createNewContentProvider(this);
+      cp = settings.createNewContentProvider(this);
     }
-    final ExportSheet sheet = new ExportSheet(cp, poiSheet.getSheetName(), poiSheet);
+    final ExportSheet sheet = new ExportSheet(cp, poiSheet.getSheetName(), poiSheet, settings);
     sheet.setImported(originSheet.isImported());
-    sheets.add(sheet);
-    return sheet;
+    synchronized (poiLock) {
+      return addSheet(sheet);
+    }
   }
 
   /**
-   * Remove the sheet at the given position.
-   * @param index
+   * Remove the sheet at the given position including all poi sheets of its parts.
+   * @param index The index of the export sheet (see {@link #getSheet(int)}), which may differ from the index of its poi sheet.
    * @return this for chaining.
+   * @see ExportSheet#setMaxRows(int)
    */
   public ExportWorkbook removeSheetAt(final int index)
   {
-    this.poiWorkbook.removeSheetAt(index);
+    synchronized (poiLock) {
+      final ExportSheet sheet = sheets.remove(index);
+      for (final Sheet poiSheet : sheet.getPoiSheets()) {
+        this.poiWorkbook.removeSheetAt(this.poiWorkbook.getSheetIndex(poiSheet));
+      }
+    }
     return this;
   }
 
   public CellStyle createCellStyle()
   {
-    ++numberOfCellStyles;
-    return poiWorkbook.createCellStyle();
+    synchronized (poiLock) {
+      ++numberOfCellStyles;
+      return poiWorkbook.createCellStyle();
+    }
   }
 
   public Font createFont()
   {
-    return poiWorkbook.createFont();
+    synchronized (poiLock) {
+      return poiWorkbook.createFont();
+    }
   }
 
   public CreationHelper getCreationHelper()
@@ -275,17 +764,146 @@ public class ExportWorkbook
 
   public short getDataFormat(final String format)
   {
-    if (dataFormats.containsKey(format) == true) {
-      return dataFormats.get(format);
+    synchronized (poiLock) {
+      if (dataFormats.containsKey(format) == true) {
+        return dataFormats.get(format);
+      }
+      final short value = getCreationHelper().createDataFormat().getFormat(format);
+      dataFormats.put(format, value);
+      ++this.numberOfDataFormats;
+      return value;
+    }
+  }
+
+  /**
+   * Poi isn't thread-safe: all modifications of the poi workbook affecting more than one sheet (such as string values of cells of
+   * non-streaming workbooks, cell styles, fonts and data formats) have to be synchronized on this lock if sheets are filled concurrently.
+   * Numbers, dates and booleans are written to the sheet only and aren't synchronized.
+   * @return The lock of the poi workbook.
+   * @see #addSheets(ExecutorService, Map)
+   */
+  public Object getPoiLock()
+  {
+    return poiLock;
+  }
+
+  /**
+   * @return The pool of the interned cell formats of this workbook (shared by all sheets).
+   */
+  public CellFormatPool getCellFormatPool()
+  {
+    return cellFormatPool;
+  }
+
+  /**
+   * @return The fonts and default cell formats of this workbook shared by all sheets (created on first call).
+   */
+  public WorkbookDefaults getDefaults()
+  {
+    WorkbookDefaults result = defaults;
+    if (result == null) {
+      synchronized (poiLock) {
+        result = defaults;
+        if (result == null) {
+          result = new WorkbookDefaults(this);
+          defaults = result;
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * @return The cell styles of this workbook shared by all sheets, also providing the counters of created and re-used styles.
+   */
+  public CellStyleRegistry getCellStyleRegistry()
+  {
+    return cellStyleRegistry;
+  }
+
+  /**
+   * @return The number of cell styles created by {@link #createCellStyle()}.
+   */
+  public int getNumberOfCellStyles()
+  {
+    synchronized (poiLock) {
+      return numberOfCellStyles;
     }
-    final short value = getCreationHelper().createDataFormat().getFormat(format);
-    dataFormats.put(format, value);
-    ++this.numberOfDataFormats;
-    return value;
   }
 
   public Workbook getPoiWorkbook()
   {
     return poiWorkbook;
   }
+
+  /**
+   * Gives access to the internal buffer for avoiding copies.
+   */
+  private static class Buffer extends ByteArrayOutputStream
+  {
+    private Buffer(final int size)
+    {
+      super(size);
+    }
+
+    private byte[] getBuffer()
+    {
+      return buf;
+    }
+  }
+
+  /**
+   * Counts the written bytes for the {@link ExportListener}.
+   */
+  private static class CountingOutputStream extends FilterOutputStream
+  {
+    private long count;
+
+    private CountingOutputStream(final OutputStream out)
+    {
+      super(out);
+    }
+
+    @Override
+    public void write(final int b) throws IOException
+    {
+      out.write(b);
+      ++count;
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len) throws IOException
+    {
+      out.write(b, off, len);
+      count += len;
+    }
+
+    private long getCount()
+    {
+      return count;
+    }
+  }
+
+  /**
+   * Poi closes the stream after writing xlsx files, so the target is protected from closing by this stream.
+   */
+  private static class NonClosingOutputStream extends FilterOutputStream
+  {
+    private NonClosingOutputStream(final OutputStream out)
+    {
+      super(out);
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len) throws IOException
+    {
+      out.write(b, off, len);
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+      flush();
+    }
+  }
 }
@@ -54,4 +54,15 @@ public class I18nExportColumn extends ExportColumn
   {
     super(name, i18nTitle != null ? ExportConfig.getInstance().getDefaultExportContext().getLocalizedString(i18nTitle) : "", width);
   }
+
+  /**
+   * @param exportContext The context used for translating the title.
+   * @param name
+   * @param i18nTitle The i18n key of the title.
+   * @param width
+   */
+  public I18nExportColumn(final ExportContext exportContext, final String name, final String i18nTitle, final int width)
+  {
+    super(name, i18nTitle != null ? exportContext.getLocalizedString(i18nTitle) : "", width);
+  }
 }
@@ -0,0 +1,219 @@
+/////////////////////////////////////////////////////////////////////////////
+//
+// Project ProjectForge Community Edition
+//         www.projectforge.org
+//
+// Copyright (C) 2001-2014 Kai Reinhard (k.reinhard@micromata.de)
+//
+// ProjectForge is dual-licensed.
+//
+// This community edition is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License as published
+// by the Free Software Foundation; version 3 of the License.
+//
+// This community edition is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+// Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with this program; if not, see http://www.gnu.org/licenses/.
+//
+/////////////////////////////////////////////////////////////////////////////
+
+package org.projectforge.excel;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.lang.StringUtils;
+import org.projectforge.common.BeanHelper;
+
+/**
+ * A nested property path such as "task.project.customer.name" compiled once into a null-safe chain of getters. The getters of each path
+ * element are resolved once per bean class and re-used for all following rows, maps on the path are accessed by the element name as key.
+ * Paths with indexed or mapped elements such as "positions[0].amount" or "attributes(color)" are resolved by
+ * {@link BeanHelper#getNestedProperty(Object, String)}. Used by {@link ExportSheet#setPropertyNames(String[])}.
+ */
+public class PropertyPath
+{
+  private static final org.projectforge.common.Logger log = org.projectforge.common.Logger.getLogger(PropertyPath.class);
+
+  /**
+   * The value of paths with a missing getter.
+   */
+  public static final String NOT_AVAILABLE = "N/A";
+
+  private final String path;
+
+  private final boolean emptyCell;
+
+  private final boolean beanHelperPath;
+
+  private final Element[] elements;
+
+  /**
+   * @param propertyNames
+   * @return The compiled paths or null if the given property names are null.
+   */
+  public static PropertyPath[] compile(final String[] propertyNames)
+  {
+    if (propertyNames == null) {
+      return null;
+    }
+    final PropertyPath[] paths = new PropertyPath[propertyNames.length];
+    for (int i = 0; i < propertyNames.length; i++) {
+      paths[i] = new PropertyPath(propertyNames[i]);
+    }
+    return paths;
+  }
+
+  /**
+   * @param path The nested property, may be null or {@link ExportSheet#EMPTY}.
+   */
+  public PropertyPath(final String path)
+  {
+    this.path = path;
+    this.emptyCell = ExportSheet.EMPTY.equals(path);
+    this.beanHelperPath = StringUtils.containsAny(path, "[(");
+    if (StringUtils.isEmpty(path) == true || emptyCell == true || beanHelperPath == true) {
+      this.elements = null;
+    } else {
+      final String[] names = StringUtils.split(path, '.');
+      this.elements = new Element[names.length];
+      for (int i = 0; i < names.length; i++) {
+        this.elements[i] = new Element(names[i]);
+      }
+    }
+  }
+
+  /**
+   * @return The property path as given.
+   */
+  public String getPath()
+  {
+    return path;
+  }
+
+  /**
+   * @return true if this path is {@link ExportSheet#EMPTY}.
+   */
+  public boolean isEmptyCell()
+  {
+    return emptyCell;
+  }
+
+  /**
+   * @param bean
+   * @return The value of the nested property, null if any object of the path is null or {@link #NOT_AVAILABLE} if no getter exists for
+   *         an element of this path (logged once per element and bean class).
+   * @throws IllegalArgumentException if a getter fails.
+   */
+  public Object getValue(final Object bean)
+  {
+    if (beanHelperPath == true) {
+      return bean == null ? null : BeanHelper.getNestedProperty(bean, path);
+    }
+    if (elements == null) {
+      return null;
+    }
+    Object value = bean;
+    for (final Element element : elements) {
+      if (value == null) {
+        return null;
+      }
+      value = element.getValue(value);
+      if (value == Element.MISSING) {
+        return NOT_AVAILABLE;
+      }
+    }
+    return value;
+  }
+
+  @Override
+  public String toString()
+  {
+    return path;
+  }
+
+  /**
+   * An element of the path with its getters by bean class.
+   */
+  private static class Element
+  {
+    private static final Object MISSING = new Object();
+
+    /** Marks bean classes without a getter of this element, so they aren't scanned again. */
+    private static final Getter NO_GETTER = new Getter(null);
+
+    private final String name;
+
+    private final String getterName;
+
+    private final String isGetterName;
+
+    /** Several classes per element are usual, e. g. for entities and their proxies. */
+    private final Map<Class< ? >, Getter> getters = new ConcurrentHashMap<Class< ? >, Getter>(4);
+
+    private Element(final String name)
+    {
+      this.name = name;
+      final String capitalized = StringUtils.capitalize(name);
+      this.getterName = "get" + capitalized;
+      this.isGetterName = "is" + capitalized;
+    }
+
+    private Object getValue(final Object bean)
+    {
+      if (bean instanceof Map< ? , ? >) {
+        return ((Map< ? , ? >) bean).get(name);
+      }
+      final Class< ? > clazz = bean.getClass();
+      Getter getter = getters.get(clazz);
+      if (getter == null) {
+        final Method method = determineGetter(clazz);
+        if (method != null) {
+          getter = new Getter(method);
+        } else {
+          log.info("Getter for property '" + name + "' not found in " + clazz.getName() + ", exporting " + NOT_AVAILABLE + ".");
+          getter = NO_GETTER;
+        }
+        getters.put(clazz, getter);
+      }
+      if (getter == NO_GETTER) {
+        return MISSING;
+      }
+      try {
+        return getter.method.invoke(bean);
+      } catch (final IllegalAccessException ex) {
+        throw new IllegalArgumentException("Getter of property '" + name + "' of " + clazz.getName() + " isn't accessible.", ex);
+      } catch (final InvocationTargetException ex) {
+        throw new IllegalArgumentException("Getter of property '" + name + "' of " + clazz.getName() + " failed: " + ex.getCause(), ex);
+      }
+    }
+
+    private Method determineGetter(final Class< ? > clazz)
+    {
+      for (final Method method : clazz.getMethods()) {
+        if (method.getParameterTypes().length == 0
+            && method.isBridge() == false
+            && (getterName.equals(method.getName()) == true || isGetterName.equals(method.getName()) == true)) {
+          return method;
+        }
+      }
+      return null;
+    }
+  }
+
+  private static class Getter
+  {
+    private final Method method;
+
+    private Getter(final Method method)
+    {
+      this.method = method;
+    }
+  }
+}
@@ -0,0 +1,38 @@
+/////////////////////////////////////////////////////////////////////////////
+//
+// Project ProjectForge Community Edition
+//         www.projectforge.org
+//
+// Copyright (C) 2001-2014 Kai Reinhard (k.reinhard@micromata.de)
+//
+// ProjectForge is dual-licensed.
+//
+// This community edition is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License as published
+// by the Free Software Foundation; version 3 of the License.
+//
+// This community edition is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+// Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with this program; if not, see http://www.gnu.org/licenses/.
+//
+/////////////////////////////////////////////////////////////////////////////
+
+package org.projectforge.excel;
+
+/**
+ * Fills a sheet of a workbook. Used for filling the sheets of a workbook concurrently.
+ * @see ExportWorkbook#addSheets(java.util.concurrent.ExecutorService, java.util.Map)
+ */
+public interface SheetFiller
+{
+  /**
+   * Called by a worker thread, so objects used by the fillers of different sheets have to be thread-safe.
+   * @param sheet The sheet to fill.
+   * @throws Exception
+   */
+  public void fill(ExportSheet sheet) throws Exception;
+}
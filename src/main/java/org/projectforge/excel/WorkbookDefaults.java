@@ -0,0 +1,153 @@
+/////////////////////////////////////////////////////////////////////////////
+//
+// Project ProjectForge Community Edition
+//         www.projectforge.org
+//
+// Copyright (C) 2001-2014 Kai Reinhard (k.reinhard@micromata.de)
+//
+// ProjectForge is dual-licensed.
+//
+// This community edition is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License as published
+// by the Free Software Foundation; version 3 of the License.
+//
+// This community edition is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+// Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with this program; if not, see http://www.gnu.org/licenses/.
+//
+/////////////////////////////////////////////////////////////////////////////
+
+
+package org.projectforge.excel;
+
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.Font;
+import org.apache.poi.ss.usermodel.IndexedColors;
+
+/**
+ * The fonts and default cell formats of a workbook, created once per workbook on first use and shared by the content providers of all
+ * sheets. Instances are immutable, so they may be used by concurrently filled sheets. Please don't modify the fonts.
+ * @see ExportWorkbook#getDefaults()
+ */
+public class WorkbookDefaults
+{
+  private final Font fontHeader;
+
+  private final Font fontNormal;
+
+  private final Font fontNormalBold;
+
+  private final Font fontWhiteBold;
+
+  private final Font fontRed;
+
+  private final Font fontRedBold;
+
+  private final CellFormat emptyFormat;
+
+  private final CellFormat textFormat;
+
+  private final CellFormat integerFormat;
+
+  private final CellFormat numberFormat;
+
+  WorkbookDefaults(final ExportWorkbook workbook)
+  {
+    fontHeader = workbook.createFont();
+    fontHeader.setFontHeightInPoints(XlsContentProvider.FONT_HEADER_SIZE);
+    fontHeader.setBoldweight(Font.BOLDWEIGHT_BOLD);
+
+    fontNormalBold = workbook.createFont();
+    fontNormalBold.setBoldweight(Font.BOLDWEIGHT_BOLD);
+
+    fontWhiteBold = workbook.createFont();
+    fontWhiteBold.setColor(IndexedColors.WHITE.getIndex());
+    fontWhiteBold.setBoldweight(Font.BOLDWEIGHT_BOLD);
+
+    fontRed = workbook.createFont();
+    fontRed.setColor(IndexedColors.RED.getIndex());
+
+    fontRedBold = workbook.createFont();
+    fontRedBold.setColor(IndexedColors.RED.getIndex());
+    fontRedBold.setBoldweight(Font.BOLDWEIGHT_BOLD);
+
+    fontNormal = workbook.createFont();
+
+    final CellFormatPool pool = workbook.getCellFormatPool();
+    emptyFormat = pool.intern(new CellFormat());
+    final CellFormat text = new CellFormat("@", CellStyle.ALIGN_LEFT);
+    text.setWrapText(true);
+    textFormat = pool.intern(text);
+    integerFormat = pool.intern(new CellFormat("#,##0", CellStyle.ALIGN_RIGHT));
+    numberFormat = pool.intern(new CellFormat("#,###.######", CellStyle.ALIGN_RIGHT));
+  }
+
+  /**
+   * @return The bold font of size {@link XlsContentProvider#FONT_HEADER_SIZE}.
+   */
+  public Font getFontHeader()
+  {
+    return fontHeader;
+  }
+
+  public Font getFontNormal()
+  {
+    return fontNormal;
+  }
+
+  public Font getFontNormalBold()
+  {
+    return fontNormalBold;
+  }
+
+  public Font getFontWhiteBold()
+  {
+    return fontWhiteBold;
+  }
+
+  public Font getFontRed()
+  {
+    return fontRed;
+  }
+
+  public Font getFontRedBold()
+  {
+    return fontRedBold;
+  }
+
+  /**
+   * @return The interned format without any settings.
+   */
+  public CellFormat getEmptyFormat()
+  {
+    return emptyFormat;
+  }
+
+  /**
+   * @return The interned format of text cells (left aligned and wrapped).
+   */
+  public CellFormat getTextFormat()
+  {
+    return textFormat;
+  }
+
+  /**
+   * @return The interned default format of integers.
+   */
+  public CellFormat getIntegerFormat()
+  {
+    return integerFormat;
+  }
+
+  /**
+   * @return The interned default format of all other numbers.
+   */
+  public CellFormat getNumberFormat()
+  {
+    return numberFormat;
+  }
+}
@@ -0,0 +1,195 @@
+/////////////////////////////////////////////////////////////////////////////
+//
+// Project ProjectForge Community Edition
+//         www.projectforge.org
+//
+// Copyright (C) 2001-2014 Kai Reinhard (k.reinhard@micromata.de)
+//
+// ProjectForge is dual-licensed.
+//
+// This community edition is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License as published
+// by the Free Software Foundation; version 3 of the License.
+//
+// This community edition is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+// Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with this program; if not, see http://www.gnu.org/licenses/.
+//
+/////////////////////////////////////////////////////////////////////////////
+
+package org.projectforge.excel;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+import org.apache.poi.ss.SpreadsheetVersion;
+import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+
+/**
+ * The supported file formats and their poi implementations (engines). The format is chosen per {@link ExportWorkbook} or
+ * {@link ExcelImport}.
+ */
+public enum WorkbookFormat
+{
+  /** MS-Excel 97-2003 (HSSF), limited to 65,536 rows and 256 columns. */
+  XLS("xls", "application/vnd.ms-excel", SpreadsheetVersion.EXCEL97)
+  {
+    @Override
+    public Workbook createWorkbook(final int rowAccessWindowSize)
+    {
+      return new HSSFWorkbook();
+    }
+
+    @Override
+    public Workbook readWorkbook(final InputStream is) throws IOException
+    {
+      return new HSSFWorkbook(is, true);
+    }
+  },
+
+  /** MS-Excel 2007+ (XSSF), all rows are hold in memory. */
+  XLSX("xlsx", "application/vnd.openxmlformats-officedocument.spreadsheetml.sheet", SpreadsheetVersion.EXCEL2007)
+  {
+    @Override
+    public Workbook createWorkbook(final int rowAccessWindowSize)
+    {
+      return new XSSFWorkbook();
+    }
+
+    @Override
+    public Workbook readWorkbook(final InputStream is) throws IOException
+    {
+      return new XSSFWorkbook(is);
+    }
+  },
+
+  /**
+   * MS-Excel 2007+ (SXSSF), only the rows of the row access window are hold in memory, older rows are flushed to temporary files. Reading
+   * isn't supported by SXSSF: workbooks of this format are read as {@link XSSFWorkbook} with all rows in memory, so they aren't streamed
+   * (and {@link #of(Workbook)} reports {@link #XLSX} for them).
+   */
+  XLSX_STREAMING("xlsx", "application/vnd.openxmlformats-officedocument.spreadsheetml.sheet", SpreadsheetVersion.EXCEL2007)
+  {
+    @Override
+    public Workbook createWorkbook(final int rowAccessWindowSize)
+    {
+      final SXSSFWorkbook workbook = new SXSSFWorkbook(rowAccessWindowSize > 0 ? rowAccessWindowSize
+          : SXSSFWorkbook.DEFAULT_WINDOW_SIZE);
+      workbook.setCompressTempFiles(true);
+      return workbook;
+    }
+
+    @Override
+    public Workbook readWorkbook(final InputStream is) throws IOException
+    {
+      return new XSSFWorkbook(is);
+    }
+
+    @Override
+    public boolean isStreaming()
+    {
+      return true;
+    }
+  };
+
+  private final String fileExtension;
+
+  private final String contentType;
+
+  private final SpreadsheetVersion spreadsheetVersion;
+
+  private WorkbookFormat(final String fileExtension, final String contentType, final SpreadsheetVersion spreadsheetVersion)
+  {
+    this.fileExtension = fileExtension;
+    this.contentType = contentType;
+    this.spreadsheetVersion = spreadsheetVersion;
+  }
+
+  /**
+   * @param rowAccessWindowSize Number of rows per sheet kept in memory, only used by streaming formats (0 for the default window size).
+   * @return A new and empty poi workbook of this format.
+   */
+  public abstract Workbook createWorkbook(int rowAccessWindowSize);
+
+  /**
+   * Reads the given workbook. The stream isn't closed by this method.
+   * @param is
+   * @return The poi workbook.
+   * @throws IOException
+   */
+  public abstract Workbook readWorkbook(InputStream is) throws IOException;
+
+  /**
+   * @return true if rows are flushed to temporary files (only the rows of the row access window are hold in memory).
+   */
+  public boolean isStreaming()
+  {
+    return false;
+  }
+
+  /**
+   * @return The file extension without dot, e. g. "xls".
+   */
+  public String getFileExtension()
+  {
+    return fileExtension;
+  }
+
+  /**
+   * @return The mime type to use e. g. for downloads.
+   */
+  public String getContentType()
+  {
+    return contentType;
+  }
+
+  /**
+   * @return 65,536 for xls and 1,048,576 for xlsx.
+   */
+  public int getMaxRows()
+  {
+    return spreadsheetVersion.getMaxRows();
+  }
+
+  /**
+   * @return 256 for xls and 16,384 for xlsx.
+   */
+  public int getMaxColumns()
+  {
+    return spreadsheetVersion.getMaxColumns();
+  }
+
+  /**
+   * @return The number of cell styles a workbook may contain: 4,000 for xls and 64,000 for xlsx.
+   */
+  public int getMaxCellStyles()
+  {
+    return spreadsheetVersion == SpreadsheetVersion.EXCEL97 ? 4000 : 64000;
+  }
+
+  public SpreadsheetVersion getSpreadsheetVersion()
+  {
+    return spreadsheetVersion;
+  }
+
+  /**
+   * @param workbook
+   * @return The format of the given poi workbook.
+   */
+  public static WorkbookFormat of(final Workbook workbook)
+  {
+    if (workbook instanceof HSSFWorkbook) {
+      return XLS;
+    } else if (workbook instanceof SXSSFWorkbook) {
+      return XLSX_STREAMING;
+    }
+    return XLSX;
+  }
+}
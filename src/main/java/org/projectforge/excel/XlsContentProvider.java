@@ -24,19 +24,18 @@
 package org.projectforge.excel;
 
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.IdentityHashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.commons.beanutils.ConvertUtils;
-import org.apache.poi.hssf.usermodel.HSSFCellStyle;
-import org.apache.poi.hssf.usermodel.HSSFFont;
-import org.apache.poi.hssf.util.HSSFColor;
 import org.apache.poi.ss.usermodel.Cell;
 import org.apache.poi.ss.usermodel.CellStyle;
 import org.apache.poi.ss.usermodel.Font;
+import org.apache.poi.ss.usermodel.IndexedColors;
 import org.projectforge.common.DateFormatType;
 
 public class XlsContentProvider implements ContentProvider
@@ -71,52 +70,129 @@ public class XlsContentProvider implements ContentProvider
 
   public static final int LENGTH_ZIPCODE = 7;
 
+  /**
+   * @deprecated Refers to the fonts of the last created content provider's workbook, use {@link WorkbookDefaults#getFontHeader()}.
+   */
+  @Deprecated
   public static Font FONT_HEADER;
 
   public static short FONT_HEADER_SIZE = 10;
 
+  /**
+   * @deprecated Refers to the fonts of the last created content provider's workbook, use {@link WorkbookDefaults#getFontNormal()}.
+   */
+  @Deprecated
   public static Font FONT_NORMAL;
 
+  /**
+   * @deprecated Refers to the fonts of the last created content provider's workbook, use {@link WorkbookDefaults#getFontNormalBold()}.
+   */
+  @Deprecated
   public static Font FONT_NORMAL_BOLD;
 
+  /**
+   * @deprecated Refers to the fonts of the last created content provider's workbook, use {@link WorkbookDefaults#getFontWhiteBold()}.
+   */
+  @Deprecated
   public static Font FONT_WHITE_BOLD;
 
+  /**
+   * @deprecated Refers to the fonts of the last created content provider's workbook, use {@link WorkbookDefaults#getFontRed()}.
+   */
+  @Deprecated
   static protected Font FONT_RED;
 
+  /**
+   * @deprecated Refers to the fonts of the last created content provider's workbook, use {@link WorkbookDefaults#getFontRedBold()}.
+   */
+  @Deprecated
   static protected Font FONT_RED_BOLD;
 
-  protected Map<CellFormat, CellStyle> reusableCellFormats = new HashMap<CellFormat, CellStyle>();
+  /** Key are the interned cell formats, the styles are taken from the cell style registry of the workbook. */
+  protected Map<CellFormat, CellStyle> reusableCellFormats = new IdentityHashMap<CellFormat, CellStyle>();
+
+  private final CellStyleRegistry.StyleFactory styleFactory = new CellStyleRegistry.StyleFactory() {
+    @Override
+    public CellStyle createCellStyle(final CellFormat format)
+    {
+      return XlsContentProvider.this.createCellStyle(format);
+    }
+  };
+
+  private static final Short COLOR_WHITE = IndexedColors.WHITE.getIndex();
+
+  private static final Short COLOR_GREY_25_PERCENT = IndexedColors.GREY_25_PERCENT.getIndex();
 
   protected ExportWorkbook workbook;
 
   private final Map<Object, CellFormat> formatMap = new HashMap<Object, CellFormat>();
 
+  /**
+   * Please call {@link #clearValueTypeCache()} after modifying this map if values were already set.
+   */
   protected final Map<Object, CellFormat> defaultFormatMap = new HashMap<Object, CellFormat>();
 
+  /** Concurrent maps: read and filled by the worker threads of {@link #prepareValues(Object[], PropertyPath[], int)}, too. */
+  private final Map<Class< ? >, ValueType> valueTypes = new ConcurrentHashMap<Class< ? >, ValueType>();
+
+  private final Map<Class< ? >, ValueWriter> customizedValueWriters = new ConcurrentHashMap<Class< ? >, ValueWriter>();
+
   private final Map<Integer, Integer> colWidthMap = new HashMap<Integer, Integer>();
 
   private boolean autoFormatCells = true;
 
+  private boolean inlineStyling;
+
+  /** Maximum number of base formats per column whose striped formats are kept. */
+  private static final int MAX_STRIPED_FORMATS_PER_COLUMN = 4;
+
+  /**
+   * The striped formats and their styles by column index (the most recently used base format first), see
+   * {@link #updateRowStyle(ExportCell, int)}.
+   */
+  private StripedFormats[] stripedFormats = new StripedFormats[0];
+
+  /** The maximum estimated length of the values per column index, only tracked if auto column width is enabled. */
+  private int[] columnLengths;
+
   private final ExportContext exportContext;
 
-  private List<ExportColumn> columns;
+  /** The registered columns by name. */
+  private Map<String, ExportColumn> columns;
+
+  /** The columns of the sheet by column index. */
+  private ExportColumn[] columnsByIndex;
+
+  /** The formats of the columns by column index, resolved from {@link #columnsByIndex} on first use. */
+  private volatile ColumnFormats[] columnFormats;
+
+  private final CellFormatPool cellFormatPool;
+
+  private final WorkbookDefaults defaults;
+
+  private final CellFormat emptyFormat;
+
+  private final CellFormat textFormat;
 
   public XlsContentProvider(final ExportWorkbook workbook)
   {
-    this(ExportConfig.getInstance().getDefaultExportContext(), workbook);
+    this(workbook.getSettings().getExportContext(), workbook);
   }
 
   public XlsContentProvider(final ExportContext exportContext, final ExportWorkbook workbook)
   {
     this.exportContext = exportContext;
     this.workbook = workbook;
-    createFonts();
-    defaultFormatMap.put(Integer.class, new CellFormat("#,##0", CellStyle.ALIGN_RIGHT));
-    defaultFormatMap.put(Number.class, new CellFormat("#,###.######", CellStyle.ALIGN_RIGHT));
-    defaultFormatMap
-    .put(Date.class, new CellFormat(ExcelDateFormats.getExcelFormatString(exportContext, DateFormatType.DATE_TIME_MINUTES)));
-    defaultFormatMap.put(java.sql.Date.class, new CellFormat(ExcelDateFormats.getExcelFormatString(exportContext, DateFormatType.DATE)));
-    defaultFormatMap.put(java.sql.Timestamp.class,
+    this.cellFormatPool = workbook.getCellFormatPool();
+    this.defaults = workbook.getDefaults();
+    assignDeprecatedFonts(defaults);
+    emptyFormat = defaults.getEmptyFormat();
+    textFormat = defaults.getTextFormat();
+    putDefaultFormat(Integer.class, defaults.getIntegerFormat());
+    putDefaultFormat(Number.class, defaults.getNumberFormat());
+    putDefaultFormat(Date.class, new CellFormat(ExcelDateFormats.getExcelFormatString(exportContext, DateFormatType.DATE_TIME_MINUTES)));
+    putDefaultFormat(java.sql.Date.class, new CellFormat(ExcelDateFormats.getExcelFormatString(exportContext, DateFormatType.DATE)));
+    putDefaultFormat(java.sql.Timestamp.class,
         new CellFormat(ExcelDateFormats.getExcelFormatString(exportContext, DateFormatType.DATE_TIME_MILLIS)));
 
   }
@@ -127,9 +203,50 @@ public class XlsContentProvider implements ContentProvider
     for (final Map.Entry<Integer, Integer> entry : colWidthMap.entrySet()) {
       sheet.setColumnWidth(entry.getKey(), entry.getValue());
     }
+    if (columnLengths != null) {
+      for (int col = 0; col < columnLengths.length; col++) {
+        if (columnLengths[col] > 0) {
+          sheet.setColumnWidth(col, Math.min(columnLengths[col] + 1, LENGTH_EXTRA_LONG) * LENGHT_UNIT);
+        }
+      }
+    }
+    return this;
+  }
+
+  /**
+   * If true, the widths of the columns are computed from the values: the displayed length of every value (dates and numbers by their data
+   * format) is estimated while setting it and the maximum length per column is applied by {@link #updateSheetStyle(ExportSheet)}, at most
+   * {@link #LENGTH_EXTRA_LONG} characters. The computed widths override the widths given by {@link #putColWidth(int, int)} for columns
+   * containing values. Much faster than {@link org.apache.poi.ss.usermodel.Sheet#autoSizeColumn(int)}, but the font isn't considered.
+   * <br/>
+   * Please enable it before adding the head row.
+   * @param autoColumnWidth
+   * @return this for chaining.
+   */
+  public XlsContentProvider setAutoColumnWidth(final boolean autoColumnWidth)
+  {
+    this.columnLengths = autoColumnWidth == true ? new int[16] : null;
     return this;
   }
 
+  public boolean isAutoColumnWidth()
+  {
+    return columnLengths != null;
+  }
+
+  private void updateColumnLength(final int col, final Object value, final CellFormat cellFormat)
+  {
+    final int length = CellWidthEstimator.getLength(value, cellFormat.getDataFormat());
+    if (col >= columnLengths.length) {
+      final int[] newLengths = new int[Math.max(col + 1, columnLengths.length * 2)];
+      System.arraycopy(columnLengths, 0, newLengths, 0, columnLengths.length);
+      columnLengths = newLengths;
+    }
+    if (length > columnLengths[col]) {
+      columnLengths[col] = length;
+    }
+  }
+
   /**
    * If true then first row and even/odd rows will be formatted with bordered cells.
    * @param autoFormatCells
@@ -139,6 +256,29 @@ public class XlsContentProvider implements ContentProvider
     this.autoFormatCells = autoFormatCells;
   }
 
+  /**
+   * If true, the cell styles (including the row highlighting) are resolved and applied by {@link #setValue(ExportCell, Object, String)}.
+   * So there is no need for a second pass over all rows and cells before writing the workbook. Empty cells between added cells of a row
+   * are created immediately (they're created by {@link ExportRow#getCells()} otherwise). <br/>
+   * Please note: Cell formats modified after setting the value aren't applied anymore, so set this flag before adding any rows.
+   * @param inlineStyling
+   * @return this for chaining.
+   */
+  public XlsContentProvider setInlineStyling(final boolean inlineStyling)
+  {
+    this.inlineStyling = inlineStyling;
+    return this;
+  }
+
+  /**
+   * @return true if the final cell style is applied directly by {@link #setValue(ExportCell, Object, String)}. In this case
+   *         {@link #updateRowStyle(ExportRow)} and {@link #updateCellStyle(ExportCell)} aren't called before writing the workbook.
+   */
+  public boolean isInlineStyling()
+  {
+    return inlineStyling;
+  }
+
   /**
    * Highlights even and odd rows and sets first column bold if even and odd rows are configured.
    * @see org.projectforge.excel.ContentProvider#updateRowStyle(org.projectforge.excel.ExportRow)
@@ -148,53 +288,159 @@ public class XlsContentProvider implements ContentProvider
   {
     if (autoFormatCells == true) {
       for (final ExportCell cell : row.getCells()) {
-        final CellFormat format = cell.ensureAndGetCellFormat();
-        format.setFillForegroundColor(HSSFColor.WHITE.index);
-        switch (row.getRowNum()) {
-          /*
-           * case 0: font = FONT_HEADER; break;
-           */
-          case 0:
-            format.setFont(FONT_NORMAL_BOLD);
-            // alignment = CellStyle.ALIGN_CENTER;
-            break;
-          default:
-            format.setFont(FONT_NORMAL);
-            if (row.getRowNum() % 2 == 0) {
-              format.setFillForegroundColor(HSSFColor.GREY_25_PERCENT.index);
-            }
-            break;
-        }
+        updateRowStyle(cell, row.getRowNum());
       }
     }
     return this;
   }
 
+  /**
+   * Highlights the given cell of an even or odd row or sets it bold if it's part of the first row. The striped formats and their styles
+   * are computed once per column and format, so striping a cell is an array lookup.
+   * @param cell
+   * @param rowNum
+   */
+  protected void updateRowStyle(final ExportCell cell, final int rowNum)
+  {
+    final int stripe;
+    switch (rowNum) {
+      case 0:
+        stripe = StripedFormats.HEAD;
+        break;
+      default:
+        stripe = rowNum % 2 == 0 ? StripedFormats.EVEN : StripedFormats.ODD;
+        break;
+    }
+    cell.setCellFormat(getStripedFormats(cell).formats[stripe]);
+  }
+
+  /**
+   * @return The striped formats of the cell's column and format. The striped formats are kept per interned base format for the most
+   *         recently used formats of the column, so alternating or equal but not interned formats don't rebuild them.
+   */
+  private StripedFormats getStripedFormats(final ExportCell cell)
+  {
+    final int col = cell.getCol();
+    final CellFormat format = cell.getCellFormat();
+    if (col >= stripedFormats.length) {
+      final StripedFormats[] newStripedFormats = new StripedFormats[Math.max(col + 1, stripedFormats.length * 2)];
+      System.arraycopy(stripedFormats, 0, newStripedFormats, 0, stripedFormats.length);
+      stripedFormats = newStripedFormats;
+    }
+    final StripedFormats first = stripedFormats[col];
+    StripedFormats striped = first != null ? first.find(format) : null;
+    if (striped != null) {
+      return striped;
+    }
+    // The striped formats of a striped format are the same (the fill colour and font are replaced).
+    final CellFormat base = getInternedCellFormat(cell);
+    striped = first != null ? first.find(base) : null;
+    if (striped == null) {
+      striped = new StripedFormats(base);
+      striped.formats[StripedFormats.HEAD] = base.withFillForegroundColor(COLOR_WHITE).withFont(defaults.getFontNormalBold());
+      striped.formats[StripedFormats.EVEN] = base.withFillForegroundColor(COLOR_GREY_25_PERCENT).withFont(defaults.getFontNormal());
+      striped.formats[StripedFormats.ODD] = base.withFillForegroundColor(COLOR_WHITE).withFont(defaults.getFontNormal());
+      striped.next = first;
+      striped.truncate(MAX_STRIPED_FORMATS_PER_COLUMN);
+      stripedFormats[col] = striped;
+    }
+    return striped;
+  }
+
+  /**
+   * @param cell
+   * @return The interned format of the given cell or the interned empty format if the cell has no format.
+   */
+  protected CellFormat getInternedCellFormat(final ExportCell cell)
+  {
+    final CellFormat format = cell.getCellFormat();
+    return format != null ? cellFormatPool.intern(format) : emptyFormat;
+  }
+
+  /**
+   * @return The fonts and default formats of the workbook.
+   */
+  protected WorkbookDefaults getDefaults()
+  {
+    return defaults;
+  }
+
+  /**
+   * The cell styles are shared by all sheets of the workbook, see {@link ExportWorkbook#getCellStyleRegistry()}.
+   */
   @Override
   public XlsContentProvider updateCellStyle(final ExportCell cell)
   {
-    final CellFormat format = cell.ensureAndGetCellFormat();
+    final int col = cell.getCol();
+    final StripedFormats first = col < stripedFormats.length ? stripedFormats[col] : null;
+    final StripedFormats striped = first != null ? first.find(cell.getCellFormat()) : null;
+    final int stripe = striped != null ? striped.indexOf(cell.getCellFormat()) : -1;
+    if (stripe >= 0) {
+      // Cell of a striped row: array lookup only.
+      CellStyle cellStyle = striped.styles[stripe];
+      if (cellStyle == null) {
+        cellStyle = getCellStyle(striped.formats[stripe]);
+        striped.styles[stripe] = cellStyle;
+      }
+      setCellStyle(cell, cellStyle);
+      return this;
+    }
+    setCellStyle(cell, getCellStyle(getInternedCellFormat(cell)));
+    return this;
+  }
+
+  /**
+   * Assigning a style modifies the workbook wide style table of xlsx files (and reads the style records of xls files), so it's synchronized
+   * with concurrently filled sheets. Cells of streaming workbooks only hold the style.
+   */
+  private void setCellStyle(final ExportCell cell, final CellStyle cellStyle)
+  {
+    if (workbook.isStreaming() == true) {
+      cell.setCellStyle(cellStyle);
+      return;
+    }
+    synchronized (workbook.getPoiLock()) {
+      cell.setCellStyle(cellStyle);
+    }
+  }
+
+  /**
+   * @param format The interned format.
+   */
+  private CellStyle getCellStyle(final CellFormat format)
+  {
     CellStyle cellStyle = reusableCellFormats.get(format);
     if (cellStyle == null) {
-      cellStyle = workbook.createCellStyle();
+      cellStyle = workbook.getCellStyleRegistry().getCellStyle(format, styleFactory);
       reusableCellFormats.put(format, cellStyle);
-      format.copyToCellStyle(cellStyle);
-      if (format.getFillForegroundColor() != null) {
-        cellStyle.setFillPattern(HSSFCellStyle.SOLID_FOREGROUND);
-      }
-      cellStyle.setBorderBottom((short) 1);
-      cellStyle.setBorderLeft((short) 1);
-      cellStyle.setBorderRight((short) 1);
-      cellStyle.setBorderTop((short) 1);
-      cellStyle.setWrapText(true);
-      final String dataFormat = format.getDataFormat();
-      if (dataFormat != null) {
-        final short df = workbook.getDataFormat(format.getDataFormat());
-        cellStyle.setDataFormat(df);
-      }
     }
-    cell.setCellStyle(cellStyle);
-    return this;
+    return cellStyle;
+  }
+
+  /**
+   * Creates the cell style of the given format. Is called once per format and workbook while holding the poi lock of the workbook. The
+   * content providers of one workbook should create equal styles for equal formats, because the styles are shared by all sheets.
+   * @param format The interned cell format.
+   * @return The new cell style.
+   */
+  protected CellStyle createCellStyle(final CellFormat format)
+  {
+    final CellStyle cellStyle = workbook.createCellStyle();
+    format.copyToCellStyle(cellStyle);
+    if (format.getFillForegroundColor() != null) {
+      cellStyle.setFillPattern(CellStyle.SOLID_FOREGROUND);
+    }
+    cellStyle.setBorderBottom((short) 1);
+    cellStyle.setBorderLeft((short) 1);
+    cellStyle.setBorderRight((short) 1);
+    cellStyle.setBorderTop((short) 1);
+    cellStyle.setWrapText(true);
+    final String dataFormat = format.getDataFormat();
+    if (dataFormat != null) {
+      final short df = workbook.getDataFormat(format.getDataFormat());
+      cellStyle.setDataFormat(df);
+    }
+    return cellStyle;
   }
 
   @Override
@@ -216,91 +462,241 @@ public class XlsContentProvider implements ContentProvider
   }
 
   /**
-   * 
+   * The value is written by the value writer of its class and the cell format is resolved by property name, column or class (the type
+   * specific writers and formats are cached per class).
    */
   @Override
   public XlsContentProvider setValue(final ExportCell cell, final Object value, final String property)
   {
-    final Cell poiCell = cell.getPoiCell();
+    final ValueType valueType = value == null ? null : getValueType(value.getClass());
     final Object customizedValue = getCustomizedValue(value);
     if (customizedValue != null) {
-      if (customizedValue instanceof Calendar) {
-        poiCell.setCellValue((Calendar) customizedValue);
-      } else if (customizedValue instanceof Date) {
-        poiCell.setCellValue((Date) customizedValue);
-      } else if (customizedValue instanceof String) {
-        poiCell.setCellValue((String) customizedValue);
+      writeValue(cell, customizedValue, getCustomizedValueWriter(customizedValue.getClass()), getCellFormat(cell.getCol(), value, property,
+          valueType));
+    } else {
+      writeValue(cell, value, valueType != null ? valueType.writer : ValueWriter.CONVERTED, getCellFormat(cell.getCol(), value, property,
+          valueType));
+    }
+    return this;
+  }
+
+  /**
+   * Converts the given values and resolves their cell formats like {@link #setValue(ExportCell, Object, String)}, but without accessing
+   * the workbook. Called by the worker threads of the parallel mode of {@link ExcelExporter}, so {@link #getCustomizedValue(Object)} and
+   * {@link #getCustomizedCellFormat(CellFormat, Object)} have to be thread-safe in this mode. The formats mustn't be modified meanwhile.
+   * @param values
+   * @param propertyPaths The property paths of the values.
+   * @param startCol The column of the first value.
+   * @return The prepared values to write by {@link #setPreparedValue(ExportCell, PreparedRow, int)}.
+   */
+  PreparedRow prepareValues(final Object[] values, final PropertyPath[] propertyPaths, final int startCol)
+  {
+    final PreparedRow row = new PreparedRow(values.length);
+    for (int i = 0; i < values.length; i++) {
+      final Object value = values[i];
+      final ValueType valueType = value == null ? null : getValueType(value.getClass());
+      final Object customizedValue = getCustomizedValue(value);
+      if (customizedValue != null) {
+        row.values[i] = customizedValue;
+        row.writers[i] = getCustomizedValueWriter(customizedValue.getClass());
       } else {
-        poiCell.setCellValue(String.valueOf(customizedValue));
+        row.values[i] = value;
+        row.writers[i] = valueType != null ? valueType.writer : ValueWriter.CONVERTED;
+      }
+      row.formats[i] = getCellFormat(startCol + i, value, propertyPaths[i].getPath(), valueType);
+    }
+    return row;
+  }
+
+  /**
+   * Writes a value prepared by {@link #prepareValues(Object[], PropertyPath[], int)}.
+   * @param cell
+   * @param row
+   * @param index The index of the value in the prepared row.
+   */
+  void setPreparedValue(final ExportCell cell, final PreparedRow row, final int index)
+  {
+    writeValue(cell, row.values[index], row.writers[index], row.formats[index]);
+  }
+
+  /**
+   * Writes the (converted) value, sets the cell format and applies the style in inline styling mode.
+   */
+  private void writeValue(final ExportCell cell, final Object value, final ValueWriter writer, final CellFormat cellFormat)
+  {
+    final Cell poiCell = cell.getPoiCell();
+    if (writer.workbookWide == true && workbook.isStreaming() == false) {
+      // String values are written to the workbook wide shared strings table (streaming workbooks write inline strings).
+      synchronized (workbook.getPoiLock()) {
+        writer.write(poiCell, value);
       }
-    } else if (value instanceof Date) { // Attention: Time zone is not given!
-      poiCell.setCellValue((Date) value);
-    } else if (value instanceof Calendar) {
-      poiCell.setCellValue((Calendar) value);
-    } else if (value instanceof Boolean) {
-      poiCell.setCellValue(((Boolean) value).booleanValue());
-    } else if (value instanceof Number) {
-      poiCell.setCellValue(((Number) value).doubleValue());
-    } else if (value instanceof Formula) {
-      poiCell.setCellFormula(((Formula) value).getExpr());
     } else {
-      poiCell.setCellValue(ConvertUtils.convert(value));
+      writer.write(poiCell, value);
+    }
+    cell.setCellFormat(cellFormat);
+    if (columnLengths != null) {
+      updateColumnLength(cell.getCol(), value, cellFormat);
+    }
+    if (inlineStyling == true) {
+      if (autoFormatCells == true) {
+        updateRowStyle(cell, cell.getRow());
+      }
+      updateCellStyle(cell);
     }
-    CellFormat cellFormat = getCellFormat(cell, value, property, formatMap);
+  }
+
+  /**
+   * @return The cell format of the given value resolved by column, property and class of the value, the text format if not found.
+   */
+  private CellFormat getCellFormat(final int col, final Object value, final String property, final ValueType valueType)
+  {
+    final ColumnFormats column = getColumnFormats(col, property);
+    CellFormat cellFormat = getCellFormat(value, column != null ? column.format : getColumnFormat(property, formatMap),
+        valueType != null ? valueType.format : null);
     if (cellFormat == null) {
-      cellFormat = getCellFormat(cell, value, property, defaultFormatMap);
+      cellFormat = getCellFormat(value, column != null ? column.defaultFormat : getColumnFormat(property, defaultFormatMap),
+          valueType != null ? valueType.defaultFormat : null);
     }
     if (cellFormat == null) {
-      cellFormat = new CellFormat();
-      cellFormat.setAlignment(CellStyle.ALIGN_LEFT);
-      cellFormat.setDataFormat("@");
-      cellFormat.setWrapText(true);
+      cellFormat = textFormat;
     }
-    cell.setCellFormat(cellFormat);
-    return this;
+    return cellFormat;
   }
 
   /**
-   * @param cell
    * @param value
+   * @param columnFormat The format of the property or column found in the map.
+   * @param typeFormat The format of the value's class (or super class) found in the map.
+   * @return The interned pre-defined cell format if found, otherwise null.
+   */
+  private CellFormat getCellFormat(final Object value, final CellFormat columnFormat, final CellFormat typeFormat)
+  {
+    CellFormat format = columnFormat;
+    if (format == null) {
+      format = typeFormat;
+    }
+    final CellFormat customizedCellFormat = getCustomizedCellFormat(format, value);
+    if (customizedCellFormat != null) {
+      format = customizedCellFormat;
+    }
+    return cellFormatPool.intern(format);
+  }
+
+  /**
    * @param property
    * @param map
-   * @return A clone of a pre-defined cell format if found, otherwise null.
+   * @return The format registered for the given property or for the registered column of this name.
    */
-  private CellFormat getCellFormat(final ExportCell cell, final Object value, final String property, final Map<Object, CellFormat> map)
+  private CellFormat getColumnFormat(final String property, final Map<Object, CellFormat> map)
   {
-    CellFormat format = null;
-    if (property != null) {
-      format = map.get(property);
+    if (property == null) {
+      return null;
     }
+    CellFormat format = map.get(property);
     if (format == null && columns != null) {
-      for (final ExportColumn column : columns) {
-        if (column.getName().equals(property) == true) {
-          format = map.get(column);
-          break;
-        }
+      final ExportColumn column = columns.get(property);
+      if (column != null) {
+        format = map.get(column);
       }
     }
-    if (format == null) {
-      Class< ? > clazz = value == null ? null : value.getClass();
-      while (format == null && clazz != null) {
-        format = map.get(clazz);
-        clazz = clazz.getSuperclass();
-      }
+    return format;
+  }
+
+  /**
+   * @param col
+   * @param property
+   * @return The formats of the given column if the property matches the column of this index, otherwise null.
+   */
+  private ColumnFormats getColumnFormats(final int col, final String property)
+  {
+    if (columnsByIndex == null || property == null || col < 0 || col >= columnsByIndex.length) {
+      return null;
     }
-    final CellFormat customizedCellFormat = getCustomizedCellFormat(format, value);
-    if (customizedCellFormat != null) {
-      format = customizedCellFormat;
+    ColumnFormats[] formats = columnFormats;
+    if (formats == null) {
+      formats = new ColumnFormats[columnsByIndex.length];
+      for (int i = 0; i < columnsByIndex.length; i++) {
+        final ExportColumn column = columnsByIndex[i];
+        if (column == null || column.getName() == null) {
+          continue;
+        }
+        formats[i] = new ColumnFormats(column.getName(), getColumnFormat(column.getName(), formatMap), getColumnFormat(column.getName(),
+            defaultFormatMap));
+      }
+      columnFormats = formats;
     }
-    if (format == null) {
+    final ColumnFormats column = formats[col];
+    if (column == null || column.name.equals(property) == false) {
       return null;
     }
-    return format.clone();
+    return column;
+  }
+
+  /**
+   * @param clazz
+   * @return The writer and the formats of the given class (resolved once per class).
+   */
+  private ValueType getValueType(final Class< ? > clazz)
+  {
+    ValueType valueType = valueTypes.get(clazz);
+    if (valueType == null) {
+      valueType = new ValueType(ValueWriter.of(clazz), getTypeFormat(clazz, formatMap), getTypeFormat(clazz, defaultFormatMap));
+      valueTypes.put(clazz, valueType);
+    }
+    return valueType;
+  }
+
+  private ValueWriter getCustomizedValueWriter(final Class< ? > clazz)
+  {
+    ValueWriter writer = customizedValueWriters.get(clazz);
+    if (writer == null) {
+      writer = ValueWriter.ofCustomized(clazz);
+      customizedValueWriters.put(clazz, writer);
+    }
+    return writer;
+  }
+
+  /**
+   * @param clazz
+   * @param map
+   * @return The format of the given class or of its nearest super class registered in the given map.
+   */
+  private CellFormat getTypeFormat(final Class< ? > clazz, final Map<Object, CellFormat> map)
+  {
+    CellFormat format = null;
+    Class< ? > cls = clazz;
+    while (format == null && cls != null) {
+      format = map.get(cls);
+      cls = cls.getSuperclass();
+    }
+    return format;
+  }
+
+  /**
+   * Puts the interned format to {@link #defaultFormatMap}.
+   * @param obj property name or class of the matching cells.
+   * @param cellFormat
+   */
+  protected void putDefaultFormat(final Object obj, final CellFormat cellFormat)
+  {
+    defaultFormatMap.put(obj, cellFormatPool.intern(cellFormat));
+    clearValueTypeCache();
+  }
+
+  /**
+   * Clears the formats cached per value class and per column. Must be called if {@link #defaultFormatMap} is modified after setting the
+   * first value.
+   */
+  protected void clearValueTypeCache()
+  {
+    valueTypes.clear();
+    columnFormats = null;
   }
 
   /**
    * Override this method for creating own cell formats.
-   * @param format May-be null if no mapping was found for the given value.
+   * @param format May-be null if no mapping was found for the given value. The format is interned (immutable), use the with-methods
+   *          for deriving modified formats.
    * @param value
    * @return null at default.
    */
@@ -309,10 +705,20 @@ public class XlsContentProvider implements ContentProvider
     return null;
   }
 
+  /**
+   * @return The formats put by property name, column or class (unmodifiable).
+   * @see #putFormat(Object, CellFormat)
+   */
+  public Map<Object, CellFormat> getFormats()
+  {
+    return Collections.unmodifiableMap(formatMap);
+  }
+
   @Override
   public XlsContentProvider putFormat(final Object obj, final CellFormat cellFormat)
   {
-    formatMap.put(obj, cellFormat);
+    formatMap.put(obj, cellFormatPool.intern(cellFormat));
+    clearValueTypeCache();
     return this;
   }
 
@@ -326,7 +732,8 @@ public class XlsContentProvider implements ContentProvider
   @Override
   public XlsContentProvider putFormat(final Object obj, final String dataFormat)
   {
-    formatMap.put(obj, new CellFormat(dataFormat));
+    formatMap.put(obj, cellFormatPool.intern(new CellFormat(dataFormat)));
+    clearValueTypeCache();
     return this;
   }
 
@@ -345,6 +752,16 @@ public class XlsContentProvider implements ContentProvider
     return this;
   }
 
+  /**
+   * Like {@link #putFormat(ExportColumn, String)}, used by {@link ExportPlan#replay(XlsContentProvider)}.
+   */
+  XlsContentProvider putFormat(final ExportColumn col, final CellFormat cellFormat)
+  {
+    registerColumn(col);
+    putFormat((Object) col, cellFormat);
+    return this;
+  }
+
   @Override
   public XlsContentProvider putFormat(final String dataFormat, final Enum< ? >... cols)
   {
@@ -371,15 +788,32 @@ public class XlsContentProvider implements ContentProvider
   }
 
   /**
-   * @param columns the columns to set
+   * The format of the column is used for all cells of the property with the column's name (the first registered column of a name wins).
+   * @param column the column to register.
    * @return this for chaining.
    */
   private XlsContentProvider registerColumn(final ExportColumn column)
   {
     if (this.columns == null) {
-      this.columns = new LinkedList<ExportColumn>();
+      this.columns = new HashMap<String, ExportColumn>();
     }
-    this.columns.add(column);
+    if (this.columns.containsKey(column.getName()) == false) {
+      this.columns.put(column.getName(), column);
+      clearValueTypeCache();
+    }
+    return this;
+  }
+
+  /**
+   * Sets the columns of the sheet by column index (called by {@link ExportSheet#setColumns(ExportColumn...)}), so the formats of the
+   * columns are resolved once per column instead of per cell. Columns not matching the property of a cell are resolved by name.
+   * @param columns
+   * @return this for chaining.
+   */
+  public XlsContentProvider setColumns(final ExportColumn... columns)
+  {
+    this.columnsByIndex = columns != null ? columns.clone() : null;
+    this.columnFormats = null;
     return this;
   }
 
@@ -390,7 +824,7 @@ public class XlsContentProvider implements ContentProvider
 
   public ContentProvider newInstance()
   {
-    return new XlsContentProvider(this.exportContext, this.workbook);
+    return new XlsContentProvider(this.exportContext, this.workbook).setInlineStyling(this.inlineStyling);
   }
 
   @Override
@@ -399,26 +833,263 @@ public class XlsContentProvider implements ContentProvider
     return workbook;
   }
 
-  private void createFonts()
+  @SuppressWarnings("deprecation")
+  private static void assignDeprecatedFonts(final WorkbookDefaults defaults)
+  {
+    FONT_HEADER = defaults.getFontHeader();
+    FONT_NORMAL_BOLD = defaults.getFontNormalBold();
+    FONT_WHITE_BOLD = defaults.getFontWhiteBold();
+    FONT_RED = defaults.getFontRed();
+    FONT_RED_BOLD = defaults.getFontRedBold();
+    FONT_NORMAL = defaults.getFontNormal();
+  }
+
+  /**
+   * The formats of the head row and of even and odd rows derived from the format of a column, and their cell styles (resolved on first
+   * use).
+   */
+  private static class StripedFormats
+  {
+    private static final int HEAD = 0;
+
+    private static final int EVEN = 1;
+
+    private static final int ODD = 2;
+
+    /** The interned format of the cells the striped formats are derived from. */
+    private final CellFormat base;
+
+    private final CellFormat[] formats = new CellFormat[3];
+
+    private final CellStyle[] styles = new CellStyle[3];
+
+    /** The striped formats of the next (less recently used) base format of the column. */
+    private StripedFormats next;
+
+    private StripedFormats(final CellFormat base)
+    {
+      this.base = base;
+    }
+
+    /**
+     * @return The entry of this or of the following base formats derived from or containing the given format (by identity) or null.
+     */
+    private StripedFormats find(final CellFormat format)
+    {
+      for (StripedFormats striped = this; striped != null; striped = striped.next) {
+        if (striped.base == format || striped.indexOf(format) >= 0) {
+          return striped;
+        }
+      }
+      return null;
+    }
+
+    /**
+     * Removes the entries following the given number of entries.
+     */
+    private void truncate(final int maxEntries)
+    {
+      StripedFormats striped = this;
+      for (int i = 1; i < maxEntries && striped != null; i++) {
+        striped = striped.next;
+      }
+      if (striped != null) {
+        striped.next = null;
+      }
+    }
+
+    /**
+     * @return The index of the given format (by identity) or -1 if it isn't one of the striped formats.
+     */
+    private int indexOf(final CellFormat format)
+    {
+      for (int i = 0; i < formats.length; i++) {
+        if (formats[i] == format) {
+          return i;
+        }
+      }
+      return -1;
+    }
+  }
+
+  /**
+   * The formats of a column resolved from the property and column formats.
+   */
+  private static class ColumnFormats
   {
-    FONT_HEADER = workbook.createFont();
-    FONT_HEADER.setFontHeightInPoints(FONT_HEADER_SIZE);
-    FONT_HEADER.setBoldweight(HSSFFont.BOLDWEIGHT_BOLD);
+    private final String name;
 
-    FONT_NORMAL_BOLD = workbook.createFont();
-    FONT_NORMAL_BOLD.setBoldweight(HSSFFont.BOLDWEIGHT_BOLD);
+    private final CellFormat format;
 
-    FONT_WHITE_BOLD = workbook.createFont();
-    FONT_WHITE_BOLD.setColor(HSSFColor.WHITE.index);
-    FONT_WHITE_BOLD.setBoldweight(HSSFFont.BOLDWEIGHT_BOLD);
+    private final CellFormat defaultFormat;
 
-    FONT_RED = workbook.createFont();
-    FONT_RED.setColor(HSSFColor.RED.index);
+    private ColumnFormats(final String name, final CellFormat format, final CellFormat defaultFormat)
+    {
+      this.name = name;
+      this.format = format;
+      this.defaultFormat = defaultFormat;
+    }
+  }
 
-    FONT_RED_BOLD = workbook.createFont();
-    FONT_RED_BOLD.setColor(HSSFColor.RED.index);
-    FONT_RED_BOLD.setBoldweight(HSSFFont.BOLDWEIGHT_BOLD);
+  /**
+   * The writer and the type formats of a value class.
+   */
+  private static class ValueType
+  {
+    private final ValueWriter writer;
 
-    FONT_NORMAL = workbook.createFont();
+    private final CellFormat format;
+
+    private final CellFormat defaultFormat;
+
+    private ValueType(final ValueWriter writer, final CellFormat format, final CellFormat defaultFormat)
+    {
+      this.writer = writer;
+      this.format = format;
+      this.defaultFormat = defaultFormat;
+    }
+  }
+
+  /**
+   * The converted values of a row with their writers and resolved cell formats, see
+   * {@link XlsContentProvider#prepareValues(Object[], PropertyPath[], int)}.
+   */
+  static class PreparedRow
+  {
+    private final Object[] values;
+
+    private final ValueWriter[] writers;
+
+    private final CellFormat[] formats;
+
+    private PreparedRow(final int size)
+    {
+      values = new Object[size];
+      writers = new ValueWriter[size];
+      formats = new CellFormat[size];
+    }
+
+    int size()
+    {
+      return values.length;
+    }
+  }
+
+  /**
+   * Writes values of a specific type into poi cells.
+   */
+  private static enum ValueWriter
+  {
+    DATE(false)
+    {
+      @Override
+      void write(final Cell poiCell, final Object value)
+      {
+        // Attention: Time zone is not given!
+        poiCell.setCellValue((Date) value);
+      }
+    },
+    CALENDAR(false)
+    {
+      @Override
+      void write(final Cell poiCell, final Object value)
+      {
+        poiCell.setCellValue((Calendar) value);
+      }
+    },
+    BOOLEAN(false)
+    {
+      @Override
+      void write(final Cell poiCell, final Object value)
+      {
+        poiCell.setCellValue(((Boolean) value).booleanValue());
+      }
+    },
+    NUMBER(false)
+    {
+      @Override
+      void write(final Cell poiCell, final Object value)
+      {
+        poiCell.setCellValue(((Number) value).doubleValue());
+      }
+    },
+    FORMULA(true)
+    {
+      @Override
+      void write(final Cell poiCell, final Object value)
+      {
+        poiCell.setCellFormula(((Formula) value).getExpr());
+      }
+    },
+    STRING(true)
+    {
+      @Override
+      void write(final Cell poiCell, final Object value)
+      {
+        poiCell.setCellValue((String) value);
+      }
+    },
+    /** Customized values of other types are written by String.valueOf. */
+    STRING_VALUE(true)
+    {
+      @Override
+      void write(final Cell poiCell, final Object value)
+      {
+        poiCell.setCellValue(String.valueOf(value));
+      }
+    },
+    /** Values of other types are converted by ConvertUtils. */
+    CONVERTED(true)
+    {
+      @Override
+      void write(final Cell poiCell, final Object value)
+      {
+        poiCell.setCellValue(ConvertUtils.convert(value));
+      }
+    };
+
+    /**
+     * True if the written values are stored in or parsed against the workbook (shared strings table of xls and xlsx files, formulas).
+     */
+    final boolean workbookWide;
+
+    private ValueWriter(final boolean workbookWide)
+    {
+      this.workbookWide = workbookWide;
+    }
+
+    abstract void write(Cell poiCell, Object value);
+
+    static ValueWriter of(final Class< ? > clazz)
+    {
+      if (Date.class.isAssignableFrom(clazz) == true) {
+        return DATE;
+      } else if (Calendar.class.isAssignableFrom(clazz) == true) {
+        return CALENDAR;
+      } else if (Boolean.class.isAssignableFrom(clazz) == true) {
+        return BOOLEAN;
+      } else if (Number.class.isAssignableFrom(clazz) == true) {
+        return NUMBER;
+      } else if (Formula.class.isAssignableFrom(clazz) == true) {
+        return FORMULA;
+      }
+      return CONVERTED;
+    }
+
+    /**
+     * @param clazz
+     * @return The writer for values returned by {@link XlsContentProvider#getCustomizedValue(Object)}.
+     */
+    static ValueWriter ofCustomized(final Class< ? > clazz)
+    {
+      if (Calendar.class.isAssignableFrom(clazz) == true) {
+        return CALENDAR;
+      } else if (Date.class.isAssignableFrom(clazz) == true) {
+        return DATE;
+      } else if (String.class.isAssignableFrom(clazz) == true) {
+        return STRING;
+      }
+      return STRING_VALUE;
+    }
   }
 }
@@ -23,9 +23,46 @@
 
 package org.projectforge.excel;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.Font;
+import org.apache.poi.ss.usermodel.IndexedColors;
+import org.junit.Assert;
 import org.junit.Test;
+import org.projectforge.core.PropertyInfo;
+import org.projectforge.core.PropertyType;
 
 public class ExportWorkbookTest
 {
@@ -34,4 +71,1021 @@ public class ExportWorkbookTest
   {
     SimpleExample.main();
   }
+
+  @Test
+  public void exportStreamingExcel() throws IOException
+  {
+    final ExportWorkbook workbook = new ExportWorkbook(10);
+    final ExportSheet sheet = workbook.addSheet("Streaming");
+    sheet.getContentProvider().setColWidths(10, 20, 20);
+    sheet.addRow().setValues("No", "Date", "Amount");
+    final Date date = new Date();
+    for (int i = 1; i <= 1000; i++) {
+      sheet.addRow().setValues(i, date, new BigDecimal(i).movePointLeft(2));
+    }
+    try {
+      sheet.getRow(0);
+      Assert.fail("IllegalStateException expected, row was already flushed.");
+    } catch (final IllegalStateException ex) {
+      // OK
+    }
+    try {
+      sheet.setMergedRegion(0, 0, 0, 1, "Merged");
+      Assert.fail("IllegalStateException expected, row was already flushed.");
+    } catch (final IllegalStateException ex) {
+      // OK
+    }
+    Assert.assertEquals(1000, sheet.getRow(1000).getRowNum());
+    final File file = new File("target/test-excel-streaming.xlsx");
+    workbook.write(new FileOutputStream(file));
+  }
+
+  @Test
+  public void setAutoFilterOfStreamingSheet()
+  {
+    final ExportSheet sheet = new ExportWorkbook(10).addSheet("Filter");
+    sheet.setColumns(new ExportColumn("no", "No", 10), new ExportColumn("amount", "Amount", 20));
+    for (int i = 1; i <= 100; i++) {
+      sheet.addRow().setValues(i, new BigDecimal(i).movePointLeft(2));
+    }
+    // The head row was already flushed, the columns are used instead.
+    sheet.setAutoFilter();
+  }
+
+  @Test
+  public void exportSheetsConcurrently() throws IOException
+  {
+    final ExportWorkbook workbook = new ExportWorkbook();
+    final Map<String, SheetFiller> fillers = new LinkedHashMap<String, SheetFiller>();
+    for (int i = 1; i <= 4; i++) {
+      fillers.put("Department " + i, new SheetFiller() {
+        @Override
+        public void fill(final ExportSheet sheet)
+        {
+          sheet.addRow().setValues("No", "Name", "Amount");
+          for (int row = 1; row <= 500; row++) {
+            sheet.addRow().setValues(row, sheet.getName() + " #" + row, new BigDecimal(row).movePointLeft(2));
+          }
+        }
+      });
+    }
+    final List<ExportSheet> sheets = workbook.addSheets(fillers);
+    Assert.assertEquals(4, sheets.size());
+    for (int i = 0; i < 4; i++) {
+      Assert.assertEquals("Department " + (i + 1), workbook.getSheet(i).getName());
+      Assert.assertEquals(501, workbook.getSheet(i).getNumberOfRows());
+      Assert.assertEquals("Department " + (i + 1) + " #500", workbook.getSheet(i).getRow(500).getCell(1).getStringCellValue());
+    }
+    final File file = new File("target/test-excel-sheets.xls");
+    workbook.write(new FileOutputStream(file));
+  }
+
+  @Test
+  public void exportStreamingSheetsConcurrently() throws IOException
+  {
+    // Rows leaving the row access window are styled while filling, concurrently to the other sheets.
+    final ExportWorkbook workbook = new ExportWorkbook(WorkbookFormat.XLSX_STREAMING, 10);
+    final Map<String, SheetFiller> fillers = new LinkedHashMap<String, SheetFiller>();
+    for (int i = 1; i <= 4; i++) {
+      final boolean inlineStyling = i % 2 == 0;
+      fillers.put("Department " + i, new SheetFiller() {
+        @Override
+        public void fill(final ExportSheet sheet)
+        {
+          ((XlsContentProvider) sheet.getContentProvider()).setInlineStyling(inlineStyling);
+          sheet.addRow().setValues("No", "Name", "Amount", "Date");
+          final Date date = new Date();
+          for (int row = 1; row <= 2000; row++) {
+            sheet.addRow().setValues(row, sheet.getName() + " #" + row, new BigDecimal(row).movePointLeft(2), date);
+          }
+        }
+      });
+    }
+    workbook.addSheets(fillers);
+    for (int i = 0; i < 4; i++) {
+      Assert.assertEquals(2001, workbook.getSheet(i).getNumberOfRows());
+      Assert.assertEquals("Department " + (i + 1) + " #2000", workbook.getSheet(i).getRow(2000).getCell(1).getStringCellValue());
+    }
+    final File file = new File("target/test-excel-sheets-streaming.xlsx");
+    workbook.write(new FileOutputStream(file));
+    final ExportWorkbook read = new ExportWorkbook(file);
+    Assert.assertEquals(4, read.getNumberOfSheets());
+    Assert.assertEquals(2000, read.getPoiWorkbook().getSheetAt(3).getLastRowNum());
+  }
+
+  @Test
+  public void styleInlineLikeDeferred()
+  {
+    final List<String> styles = new ArrayList<String>();
+    for (final boolean inlineStyling : new boolean[] { false, true }) {
+      final ExportWorkbook workbook = new ExportWorkbook();
+      final ExportSheet sheet = workbook.addSheet("Styles");
+      ((XlsContentProvider) sheet.getContentProvider()).setInlineStyling(inlineStyling).putFormat("amount", "#,##0.000");
+      sheet.setColumns(new ExportColumn("no", "No", 10), new ExportColumn("name", "Name", 20), new ExportColumn("amount", "Amount", 20),
+          new ExportColumn("date", "Date", 20));
+      final Date date = new GregorianCalendar(2014, Calendar.MARCH, 1).getTime();
+      for (int i = 1; i <= 5; i++) {
+        sheet.addRow().setValues(i, "Name " + i, new BigDecimal(i).movePointLeft(2), date);
+      }
+      // Empty cells left of the cell are styled, too.
+      sheet.addRow().addCell(3, date, "date");
+      workbook.updateStyles();
+      final StringBuilder buf = new StringBuilder();
+      for (int row = 0; row <= sheet.getPoiSheet().getLastRowNum(); row++) {
+        for (int col = 0; col < 4; col++) {
+          final Cell cell = sheet.getPoiSheet().getRow(row).getCell(col);
+          final CellStyle style = cell.getCellStyle();
+          final Font font = workbook.getPoiWorkbook().getFontAt(style.getFontIndex());
+          buf.append(row).append('/').append(col).append(": ").append(style.getDataFormatString()).append(", ")
+              .append(style.getAlignment()).append(", ").append(style.getFillPattern()).append(", ").append(style.getFillForegroundColor())
+              .append(", ").append(font.getBoldweight()).append('\n');
+        }
+      }
+      styles.add(buf.toString());
+    }
+    Assert.assertEquals(styles.get(0), styles.get(1));
+  }
+
+  @Test
+  public void resolveFormatsByColumnIndex()
+  {
+    final ExportWorkbook workbook = new ExportWorkbook();
+    final ExportSheet sheet = workbook.addSheet("Amounts");
+    final XlsContentProvider contentProvider = (XlsContentProvider) sheet.getContentProvider();
+    final ExportColumn net = new ExportColumn("amount", "Net", 10);
+    final ExportColumn gross = new ExportColumn("amount", "Gross", 10);
+    contentProvider.putFormat(net, "#,##0.0");
+    contentProvider.putFormat(gross, "#,##0.000");
+    sheet.setColumns(net, gross);
+    final ExportRow row = sheet.addRow();
+    for (int col = 0; col < 3; col++) {
+      row.addCell(col, BigDecimal.ONE, "amount");
+    }
+    // The column of the index wins, the first registered column of the name is the fallback outside the columns.
+    Assert.assertEquals("#,##0.0", row.getCell(0).getCellFormat().getDataFormat());
+    Assert.assertEquals("#,##0.000", row.getCell(1).getCellFormat().getDataFormat());
+    Assert.assertEquals("#,##0.0", row.getCell(2).getCellFormat().getDataFormat());
+
+    final InvoiceExporter exporter = new InvoiceExporter()
+    {
+      @Override
+      protected List<ExportColumn> onBeforeSettingColumns(final ContentProvider sheetProvider, final List<ExportColumn> columns)
+      {
+        return reorderColumns(removeColumns(super.onBeforeSettingColumns(sheetProvider, columns), "date"), "amount");
+      }
+    };
+    final ExportSheet invoices = exporter.getWorkbook().addSheet("Invoices");
+    final List<Invoice> list = new ArrayList<Invoice>();
+    list.add(new Invoice(1, new Date(), BigDecimal.ONE));
+    exporter.addList(invoices, list);
+    final Map<String, String> dataFormats = getDataFormats((XlsContentProvider) invoices.getContentProvider());
+    Assert.assertArrayEquals(new String[] { "amount", "number" }, invoices.getPropertyNames());
+    Assert.assertEquals(dataFormats.get("amount"), invoices.getRow(1).getCell(0).getCellFormat().getDataFormat());
+    Assert.assertEquals("0000", invoices.getRow(1).getCell(1).getCellFormat().getDataFormat());
+    Assert.assertNull(invoices.getRow(1).peekCell(2));
+  }
+
+  @Test
+  public void importXlsx() throws IOException
+  {
+    final ExportWorkbook workbook = new ExportWorkbook(WorkbookFormat.XLSX, 0);
+    final ExportSheet sheet = workbook.addSheet("Invoices");
+    final Date date = new GregorianCalendar(2014, Calendar.MARCH, 1).getTime();
+    sheet.addRow().setValues("name", "amount", "date");
+    sheet.addRow().setValues("First", new BigDecimal("1.5"), date);
+    sheet.addRow().setValues("Second", new BigDecimal("42"), null);
+
+    final ExcelImport<ImportedInvoice> excelImport = new ExcelImport<ImportedInvoice>(new ByteArrayInputStream(workbook.getAsByteArray()),
+        WorkbookFormat.XLSX);
+    Assert.assertEquals("[name, amount, date]", excelImport.getColumnNames().toString());
+    final ImportedInvoice[] invoices = excelImport.convertToRows(ImportedInvoice.class);
+    Assert.assertEquals(2, invoices.length);
+    Assert.assertEquals("First", invoices[0].getName());
+    Assert.assertEquals(0, new BigDecimal("1.5").compareTo(invoices[0].getAmount()));
+    Assert.assertEquals(date, invoices[0].getDate());
+    Assert.assertEquals("Second", invoices[1].getName());
+    Assert.assertEquals(0, new BigDecimal("42").compareTo(invoices[1].getAmount()));
+    Assert.assertNull(invoices[1].getDate());
+  }
+
+  @Test
+  public void exportSheetWithRollover() throws IOException
+  {
+    final ExportWorkbook workbook = new ExportWorkbook();
+    final ExportSheet sheet = workbook.addSheet("Rollover");
+    Assert.assertEquals(WorkbookFormat.XLS.getMaxRows(), sheet.getMaxRows());
+    sheet.setMaxRows(100);
+    sheet.setColumns(new ExportColumn("no", "No", 10), new ExportColumn("amount", "Amount", 20));
+    sheet.createFreezePane(0, 1);
+    for (int i = 1; i <= 250; i++) {
+      sheet.addRow().setValues(i, new BigDecimal(i).movePointLeft(2));
+    }
+    Assert.assertEquals(3, sheet.getNumberOfParts());
+    Assert.assertEquals(3, workbook.getPoiWorkbook().getNumberOfSheets());
+    Assert.assertEquals("Rollover (3)", workbook.getPoiWorkbook().getSheetName(2));
+    // Head row and 99 data rows per part, 52 data rows remain for the last part.
+    Assert.assertEquals("No", sheet.getPoiSheet().getRow(0).getCell(0).getStringCellValue());
+    Assert.assertEquals(52, sheet.getPoiSheet().getLastRowNum());
+    final File file = new File("target/test-excel-rollover.xls");
+    workbook.write(new FileOutputStream(file));
+  }
+
+  @Test
+  public void mergeAndRemoveSheetsWithRollover()
+  {
+    final ExportWorkbook workbook = new ExportWorkbook();
+    final ExportSheet other = workbook.addSheet("Data (2)");
+    final ExportSheet sheet = workbook.addSheet("Data");
+    sheet.setMaxRows(10);
+    for (int i = 0; i < 25; i++) {
+      sheet.addRow().setValues(i);
+    }
+    Assert.assertEquals(3, sheet.getNumberOfParts());
+    // "Data (2)" is already used.
+    Assert.assertEquals("Data (3)", workbook.getPoiWorkbook().getSheetName(2));
+    Assert.assertEquals("Data (4)", workbook.getPoiWorkbook().getSheetName(3));
+
+    // Rows 20-24 are part of the third poi sheet.
+    sheet.setMergedRegion(21, 22, 0, 1, "merged");
+    Assert.assertEquals(1, sheet.getPoiSheet().getNumMergedRegions());
+    Assert.assertEquals(1, sheet.getPoiSheet().getMergedRegion(0).getFirstRow());
+    Assert.assertEquals(2, sheet.getPoiSheet().getMergedRegion(0).getLastRow());
+    try {
+      sheet.setMergedRegion(15, 16, 0, 1, "previous part");
+      Assert.fail("IllegalArgumentException expected, region belongs to a previous part.");
+    } catch (final IllegalArgumentException ex) {
+      // OK
+    }
+    try {
+      sheet.setMergedRegion(28, 31, 0, 1, "next part");
+      Assert.fail("IllegalArgumentException expected, region exceeds the current part.");
+    } catch (final IllegalArgumentException ex) {
+      // OK
+    }
+
+    final ExportSheet clone = workbook.cloneSheet(0, "Clone");
+    Assert.assertEquals("Clone", workbook.getPoiWorkbook().getSheetName(4));
+    // Clones are continued on further poi sheets like added sheets.
+    Assert.assertEquals(WorkbookFormat.XLS.getMaxRows(), clone.getMaxRows());
+    try {
+      workbook.cloneSheet(1, "Clone of parts");
+      Assert.fail("IllegalStateException expected, sheet was continued on further poi sheets.");
+    } catch (final IllegalStateException ex) {
+      // OK
+    }
+    // Removes all parts.
+    workbook.removeSheetAt(1);
+    Assert.assertEquals(2, workbook.getNumberOfSheets());
+    Assert.assertSame(other, workbook.getSheet(0));
+    Assert.assertEquals(2, workbook.getPoiWorkbook().getNumberOfSheets());
+    Assert.assertEquals("Data (2)", workbook.getPoiWorkbook().getSheetName(0));
+    Assert.assertEquals("Clone", workbook.getPoiWorkbook().getSheetName(1));
+  }
+
+  @Test
+  public void shareCellStylesBetweenSheets()
+  {
+    final ExportWorkbook workbook = new ExportWorkbook();
+    for (int i = 1; i <= 2; i++) {
+      final ExportSheet sheet = workbook.addSheet("Sheet " + i);
+      sheet.addRow().setValues("No", "Amount");
+      for (int row = 1; row <= 10; row++) {
+        sheet.addRow().setValues(row, new BigDecimal(row).movePointLeft(2));
+      }
+    }
+    workbook.updateStyles();
+    final CellStyleRegistry registry = workbook.getCellStyleRegistry();
+    // One style for the head row plus the styles of the even and odd rows of both columns.
+    Assert.assertEquals(5, registry.getNumberOfCreatedStyles());
+    Assert.assertEquals(5, workbook.getNumberOfCellStyles());
+    Assert.assertEquals(0, registry.getFallbacks());
+    Assert.assertSame(workbook.getSheet(0).getRow(3).getCell(1).getPoiCell().getCellStyle(), workbook.getSheet(1).getRow(3).getCell(1)
+        .getPoiCell().getCellStyle());
+    // The fonts are created once per workbook.
+    Assert.assertSame(workbook.getDefaults(), ((XlsContentProvider) workbook.getSheet(1).getContentProvider()).getDefaults());
+  }
+
+  @Test
+  public void stripeAlternatingFormats()
+  {
+    final ExportWorkbook workbook = new ExportWorkbook();
+    final ExportSheet sheet = workbook.addSheet("Striped");
+    final XlsContentProvider contentProvider = (XlsContentProvider) sheet.getContentProvider();
+    final CellFormatPool pool = workbook.getCellFormatPool();
+    final WorkbookDefaults defaults = workbook.getDefaults();
+    final Short grey = IndexedColors.GREY_25_PERCENT.getIndex();
+    final Short white = IndexedColors.WHITE.getIndex();
+    final List<CellFormat> striped = new ArrayList<CellFormat>();
+    for (int i = 0; i < 6; i++) {
+      final ExportCell cell = sheet.addRow().addCell(0, i);
+      // Alternating formats, not interned.
+      cell.setCellFormat(new CellFormat(i % 2 == 0 ? "0.00" : "#,##0"));
+      contentProvider.updateRowStyle(cell, i);
+      striped.add(cell.getCellFormat());
+      // Striping a striped cell again doesn't change its format.
+      contentProvider.updateRowStyle(cell, i);
+      Assert.assertSame(striped.get(i), cell.getCellFormat());
+    }
+    final CellFormat even = pool.intern(new CellFormat("0.00"));
+    final CellFormat odd = pool.intern(new CellFormat("#,##0"));
+    Assert.assertSame(even.withFillForegroundColor(white).withFont(defaults.getFontNormalBold()), striped.get(0));
+    Assert.assertSame(odd.withFillForegroundColor(white).withFont(defaults.getFontNormal()), striped.get(1));
+    Assert.assertSame(even.withFillForegroundColor(grey).withFont(defaults.getFontNormal()), striped.get(2));
+    Assert.assertSame(striped.get(1), striped.get(3));
+    Assert.assertSame(striped.get(2), striped.get(4));
+    Assert.assertSame(striped.get(1), striped.get(5));
+  }
+
+  @Test
+  public void exportSheetWithAutoColumnWidth()
+  {
+    final ExportWorkbook workbook = new ExportWorkbook();
+    final ExportSheet sheet = workbook.addSheet("Auto width");
+    ((XlsContentProvider) sheet.getContentProvider()).setAutoColumnWidth(true);
+    sheet.addRow().setValues("No", "Description");
+    sheet.addRow().setValues(1234567, "Short");
+    sheet.addRow().setValues(1, "A somewhat longer text");
+    workbook.updateStyles();
+    // "1,234,567" and "A somewhat longer text" plus one character each.
+    Assert.assertEquals(10 * 256, sheet.getPoiSheet().getColumnWidth(0));
+    Assert.assertEquals(23 * 256, sheet.getPoiSheet().getColumnWidth(1));
+  }
+
+  @Test
+  public void exportWithMetrics()
+  {
+    final ExportMetrics metrics = new ExportMetrics();
+    final ExportWorkbook workbook = new ExportWorkbook().setListener(metrics);
+    final ExportSheet sheet = workbook.addSheet("Metrics");
+    sheet.addRow().setValues("No", "Amount");
+    for (int i = 1; i <= 100; i++) {
+      sheet.addRow().setValues(i, new BigDecimal(i).movePointLeft(2));
+    }
+    final byte[] content = workbook.getAsByteArray();
+    Assert.assertEquals(1, metrics.getWorkbooks());
+    Assert.assertEquals(101, metrics.getRows());
+    Assert.assertEquals(202, metrics.getCells());
+    Assert.assertEquals(101, metrics.getPeakRowsInMemory());
+    Assert.assertEquals(content.length, metrics.getBytes());
+    Assert.assertEquals(1, metrics.getCount(ExportPhase.STYLING));
+    Assert.assertEquals(1, metrics.getCount(ExportPhase.SERIALIZATION));
+  }
+
+  @Test
+  public void writeToChannel() throws IOException
+  {
+    final byte[] expected = createSmallWorkbook().getAsByteArray();
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final WritableByteChannel channel = Channels.newChannel(out);
+    createSmallWorkbook().write(channel);
+    Assert.assertTrue("The channel must not be closed.", channel.isOpen());
+    channel.write(ByteBuffer.wrap(new byte[] { 42 }));
+    final byte[] content = out.toByteArray();
+    Assert.assertEquals(expected.length + 1, content.length);
+    Assert.assertArrayEquals(expected, Arrays.copyOf(content, expected.length));
+  }
+
+  @Test
+  public void writeToTempFile() throws IOException
+  {
+    final byte[] expected = createSmallWorkbook().getAsByteArray();
+    final File file = createSmallWorkbook().writeToTempFile();
+    try {
+      Assert.assertTrue(file.getName().endsWith(".xls"));
+      Assert.assertArrayEquals(expected, readFile(file));
+    } finally {
+      file.delete();
+    }
+  }
+
+  @Test
+  public void transferTempFile() throws IOException
+  {
+    final byte[] expected = createSmallWorkbook().getAsByteArray();
+    final File file = createSmallWorkbook().writeToTempFile();
+    try {
+      final ByteArrayOutputStream out = new ByteArrayOutputStream();
+      final WritableByteChannel channel = Channels.newChannel(out);
+      Assert.assertEquals(expected.length, ExportWorkbook.transferTo(file, channel));
+      Assert.assertTrue("The target must not be closed.", channel.isOpen());
+      Assert.assertArrayEquals(expected, out.toByteArray());
+    } finally {
+      file.delete();
+    }
+  }
+
+  @Test
+  public void getAsByteArrayOfExpectedSize()
+  {
+    final byte[] expected = createSmallWorkbook().getAsByteArray();
+    // Too small, exact and too large buffers.
+    Assert.assertArrayEquals(expected, createSmallWorkbook().getAsByteArray(1));
+    Assert.assertArrayEquals(expected, createSmallWorkbook().getAsByteArray(expected.length));
+    Assert.assertArrayEquals(expected, createSmallWorkbook().getAsByteArray(expected.length * 2));
+  }
+
+  @Test
+  public void getAsByteBuffer()
+  {
+    final byte[] expected = createSmallWorkbook().getAsByteArray();
+    final ByteBuffer buffer = createSmallWorkbook().getAsByteBuffer(expected.length * 2);
+    Assert.assertTrue(buffer.isReadOnly());
+    Assert.assertEquals(expected.length, buffer.remaining());
+    final byte[] content = new byte[buffer.remaining()];
+    buffer.get(content);
+    Assert.assertArrayEquals(expected, content);
+  }
+
+  private static ExportWorkbook createSmallWorkbook()
+  {
+    final ExportWorkbook workbook = new ExportWorkbook();
+    final ExportSheet sheet = workbook.addSheet("Invoices");
+    sheet.addRow().setValues("No", "Description", "Amount");
+    for (int i = 1; i <= 10; i++) {
+      sheet.addRow().setValues(i, "Invoice " + i, new BigDecimal(i).movePointLeft(2));
+    }
+    return workbook;
+  }
+
+  private static byte[] readFile(final File file) throws IOException
+  {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final InputStream in = new FileInputStream(file);
+    try {
+      final byte[] buffer = new byte[4096];
+      int n;
+      while ((n = in.read(buffer)) >= 0) {
+        out.write(buffer, 0, n);
+      }
+    } finally {
+      in.close();
+    }
+    return out.toByteArray();
+  }
+
+  @Test
+  public void cacheTemplates() throws IOException
+  {
+    final ExportWorkbook template = new ExportWorkbook();
+    template.addSheet("Invoice").addRow().setValues("Invoice no");
+    final byte[] content = template.getAsByteArray();
+    final AtomicInteger reads = new AtomicInteger();
+    final ExportTemplateCache.TemplateSource source = new ExportTemplateCache.TemplateSource()
+    {
+      @Override
+      public InputStream open()
+      {
+        reads.incrementAndGet();
+        return new ByteArrayInputStream(content);
+      }
+    };
+    // Refills the pools on the calling thread.
+    final Executor executor = new Executor()
+    {
+      @Override
+      public void execute(final Runnable command)
+      {
+        command.run();
+      }
+    };
+    final ExportTemplateCache cache = new ExportTemplateCache(2 * content.length, 1, executor);
+    final ExportWorkbook first = cache.getWorkbook("invoice", 1, source);
+    first.getPoiWorkbook().getSheetAt(0).getRow(0).getCell(0).setCellValue("Changed");
+    final ExportWorkbook second = cache.getWorkbook("invoice", 1, source);
+    Assert.assertEquals(1, reads.get());
+    Assert.assertEquals(1, cache.getReads());
+    // The first request parses, the second one gets the workbook parsed ahead.
+    Assert.assertEquals(1, cache.getMisses());
+    Assert.assertEquals(1, cache.getHits());
+    Assert.assertNotSame(first, second);
+    Assert.assertEquals("Invoice no", second.getPoiWorkbook().getSheetAt(0).getRow(0).getCell(0).getStringCellValue());
+
+    // A new version is read again.
+    cache.getWorkbook("invoice", 2, source);
+    Assert.assertEquals(2, reads.get());
+    Assert.assertEquals(2, cache.getMisses());
+    Assert.assertEquals(1, cache.getNumberOfTemplates());
+    Assert.assertEquals(content.length, cache.getSize());
+
+    // The least recently used template is evicted.
+    cache.getWorkbook("offer", 1, source);
+    cache.getWorkbook("invoice", 2, source);
+    cache.getWorkbook("order", 1, source);
+    Assert.assertEquals(4, reads.get());
+    Assert.assertEquals(2, cache.getNumberOfTemplates());
+    Assert.assertEquals(1, cache.getEvictions());
+    cache.getWorkbook("invoice", 2, source);
+    Assert.assertEquals(4, reads.get());
+    cache.getWorkbook("offer", 1, source);
+    Assert.assertEquals(5, reads.get());
+  }
+
+  @Test
+  public void internCellFormats() throws Exception
+  {
+    final CellFormatPool pool = new CellFormatPool();
+    final CellFormat format = pool.intern(new CellFormat("#,##0", CellStyle.ALIGN_RIGHT));
+    Assert.assertTrue(format.isInterned());
+    Assert.assertSame(format, pool.intern(new CellFormat("#,##0", CellStyle.ALIGN_RIGHT)));
+    Assert.assertSame(format, pool.intern(format));
+    Assert.assertSame(format, format.withAlignment(CellStyle.ALIGN_RIGHT));
+    Assert.assertSame(pool.intern(new CellFormat("#,##0", CellStyle.ALIGN_LEFT)), format.withAlignment(CellStyle.ALIGN_LEFT));
+    try {
+      format.setDataFormat("0.00");
+      Assert.fail("UnsupportedOperationException expected, interned formats are immutable.");
+    } catch (final UnsupportedOperationException ex) {
+      // OK
+    }
+    // Equal formats interned concurrently result in one instance.
+    final CellFormatPool concurrentPool = new CellFormatPool();
+    final ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      final List<Future<CellFormat>> futures = new ArrayList<Future<CellFormat>>();
+      for (int i = 0; i < 64; i++) {
+        futures.add(executor.submit(new Callable<CellFormat>() {
+          @Override
+          public CellFormat call()
+          {
+            return concurrentPool.intern(new CellFormat("0.00"));
+          }
+        }));
+      }
+      for (final Future<CellFormat> future : futures) {
+        Assert.assertSame(futures.get(0).get(), future.get());
+      }
+      Assert.assertEquals(1, concurrentPool.size());
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void runExportsWithBoundedConcurrency() throws Exception
+  {
+    final ExecutorService threads = Executors.newCachedThreadPool();
+    final ExportExecutor exportExecutor = new ExportExecutor(2, threads);
+    final CountDownLatch started = new CountDownLatch(2);
+    final CountDownLatch release = new CountDownLatch(1);
+    final AtomicInteger running = new AtomicInteger();
+    final AtomicInteger maxRunning = new AtomicInteger();
+    final List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+    for (int i = 0; i < 5; i++) {
+      final int no = i;
+      futures.add(exportExecutor.submit(new Callable<Integer>() {
+        @Override
+        public Integer call() throws Exception
+        {
+          final int current = running.incrementAndGet();
+          synchronized (maxRunning) {
+            maxRunning.set(Math.max(maxRunning.get(), current));
+          }
+          started.countDown();
+          release.await();
+          running.decrementAndGet();
+          return no;
+        }
+      }));
+    }
+    Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+    Assert.assertEquals(0, exportExecutor.getAvailablePermits());
+    Assert.assertEquals(3, exportExecutor.getQueueSize());
+    // Queued exports are still run after shutdown, new ones are rejected.
+    exportExecutor.shutdown();
+    try {
+      exportExecutor.submit(new Callable<Integer>() {
+        @Override
+        public Integer call()
+        {
+          return -1;
+        }
+      });
+      Assert.fail("RejectedExecutionException expected, executor is shut down.");
+    } catch (final RejectedExecutionException ex) {
+      // OK
+    }
+    Assert.assertFalse(threads.isShutdown());
+    release.countDown();
+    for (int i = 0; i < 5; i++) {
+      Assert.assertEquals(i, (int) futures.get(i).get(10, TimeUnit.SECONDS));
+    }
+    Assert.assertEquals(2, maxRunning.get());
+    Assert.assertTrue(threads.awaitTermination(10, TimeUnit.SECONDS));
+    Assert.assertEquals(0, exportExecutor.getQueueSize());
+  }
+
+  @Test
+  public void addRowsWhileIteratingRows()
+  {
+    final ExportSheet sheet = new ExportWorkbook().addSheet("Rows");
+    sheet.addRow().setValues("a");
+    sheet.addRow().setValues("b");
+    for (final ExportRow row : sheet.getRows()) {
+      sheet.addRow().setValues(row.getCell(0).getStringCellValue());
+    }
+    Assert.assertEquals(4, sheet.getRows().size());
+  }
+
+  @Test
+  public void getCellsOfDenseAndSparseRows()
+  {
+    final ExportWorkbook workbook = new ExportWorkbook(WorkbookFormat.XLSX);
+    final ExportSheet sheet = workbook.addSheet("Cells");
+    final ExportRow dense = sheet.addRow();
+    dense.addCell(0, "a");
+    dense.addCell(3, "d");
+    Assert.assertFalse(dense.isSparse());
+    Assert.assertEquals(2, dense.getNumberOfCells());
+    Assert.assertNull(dense.peekCell(1));
+    // Missing cells are created on read.
+    Assert.assertEquals(4, dense.getCells().length);
+    Assert.assertNotNull(dense.peekCell(1));
+    final ExportCell cell = dense.getCell(5);
+    Assert.assertSame(cell, dense.getCell(5));
+    Assert.assertEquals(5, dense.getMaxCol());
+
+    final ExportRow sparse = sheet.addRow();
+    sparse.addCell(0, "a");
+    sparse.addCell(1000, "b");
+    Assert.assertTrue(sparse.isSparse());
+    Assert.assertEquals(2, sparse.getCells().length);
+    Assert.assertNull(sparse.peekCell(500));
+    Assert.assertEquals(500, sparse.getCell(500).getCol());
+    Assert.assertEquals(3, sparse.getCells().length);
+    Assert.assertEquals("b", sparse.getCells()[2].getStringCellValue());
+    // The compacted cells are re-used until the next cell is added.
+    final ExportCell[] cells = sparse.getCells();
+    Assert.assertSame(cells, sparse.getCells());
+    sparse.addCell(2000, "c");
+    Assert.assertNotSame(cells, sparse.getCells());
+    Assert.assertEquals(4, sparse.getCells().length);
+
+    // An empty row gets an empty first cell.
+    Assert.assertEquals(1, sheet.addRow().getCells().length);
+  }
+
+  @Test
+  public void replayCachedExportPlans()
+  {
+    final ExportPlanCache cache = new ExportPlanCache(10);
+    final List<Invoice> invoices = new ArrayList<Invoice>();
+    for (int i = 1; i <= 3; i++) {
+      invoices.add(new Invoice(i, new Date(), new BigDecimal(i).movePointLeft(2)));
+    }
+    final List<Map<String, String>> dataFormats = new ArrayList<Map<String, String>>();
+    final List<ExportColumn> firstColumns = new ArrayList<ExportColumn>();
+    for (int i = 0; i < 2; i++) {
+      // The exporter casts the content provider, this mustn't fail if the plan is replayed.
+      final InvoiceExporter exporter = new InvoiceExporter();
+      exporter.setExportPlanCache(cache);
+      final ExportSheet sheet = exporter.getWorkbook().addSheet("Invoices");
+      exporter.addList(sheet, invoices);
+      dataFormats.add(getDataFormats((XlsContentProvider) sheet.getContentProvider()));
+      if (i == 0) {
+        firstColumns.addAll(cache.get(Invoice.class, exporter.getWorkbook().getSettings(), InvoiceExporter.class, 20).getColumns());
+      }
+    }
+    Assert.assertEquals(1, cache.getMisses());
+    Assert.assertEquals(2, cache.getHits());
+    Assert.assertEquals("0000", dataFormats.get(0).get("number"));
+    Assert.assertEquals("MM/dd/yyyy", dataFormats.get(0).get("date"));
+    Assert.assertEquals("#,##0.00;[Red]-#,##0.00", dataFormats.get(0).get("amount"));
+    Assert.assertEquals(dataFormats.get(0), dataFormats.get(1));
+
+    // Every export gets its own copies of the columns.
+    final ExportPlan plan = cache.get(Invoice.class, ExportSettings.getDefault(), InvoiceExporter.class, 20);
+    final List<ExportColumn> columns = plan.getColumns();
+    Assert.assertEquals(3, columns.size());
+    Assert.assertEquals("amount", columns.get(2).getName());
+    Assert.assertEquals(12, columns.get(2).getWidth());
+    Assert.assertNotSame(columns.get(2), plan.getColumns().get(2));
+    columns.get(2).setWidth(50);
+    Assert.assertEquals(12, plan.getColumns().get(2).getWidth());
+    Assert.assertEquals(12, firstColumns.get(2).getWidth());
+  }
+
+  @Test
+  public void skipExportPlansWithFonts()
+  {
+    final ExportPlanCache cache = new ExportPlanCache(10);
+    final List<Invoice> invoices = new ArrayList<Invoice>();
+    invoices.add(new Invoice(1, new Date(), BigDecimal.ONE));
+    for (int i = 0; i < 2; i++) {
+      final ExcelExporter exporter = new InvoiceExporter()
+      {
+        @Override
+        protected List<ExportColumn> onBeforeSettingColumns(final ContentProvider sheetProvider, final List<ExportColumn> columns)
+        {
+          // Fonts are bound to the workbook, so this setup isn't cacheable.
+          sheetProvider.putFormat("number", new CellFormat("0").setFont(getWorkbook().createFont()));
+          return columns;
+        }
+      }.setExportPlanCache(cache);
+      exporter.addList(exporter.getWorkbook().addSheet("Invoices"), invoices);
+    }
+    Assert.assertEquals(0, cache.getNumberOfPlans());
+    Assert.assertEquals(2, cache.getMisses());
+  }
+
+  @Test
+  public void dontCacheExportColumnSubclasses()
+  {
+    final ExportPlanCache cache = new ExportPlanCache(10);
+    final List<Invoice> invoices = new ArrayList<Invoice>();
+    invoices.add(new Invoice(1, new Date(), BigDecimal.ONE));
+    for (int i = 1; i <= 2; i++) {
+      final int run = i;
+      final ExcelExporter exporter = new InvoiceExporter()
+      {
+        @Override
+        protected List<ExportColumn> onBeforeSettingColumns(final ContentProvider sheetProvider, final List<ExportColumn> columns)
+        {
+          // A copy of this column would lose the overridden title.
+          columns.set(0, new ExportColumn("number", "No", 10)
+          {
+            @Override
+            public String getTitle()
+            {
+              return "No " + run;
+            }
+          });
+          return super.onBeforeSettingColumns(sheetProvider, columns);
+        }
+      }.setExportPlanCache(cache);
+      final ExportSheet sheet = exporter.getWorkbook().addSheet("Invoices");
+      exporter.addList(sheet, invoices);
+      Assert.assertEquals("No " + i, sheet.getRow(0).getCell(0).getStringCellValue());
+    }
+    Assert.assertEquals(0, cache.getNumberOfPlans());
+    Assert.assertEquals(2, cache.getMisses());
+  }
+
+  @Test
+  public void cacheExportPlansPerSettings()
+  {
+    final ExportPlanCache cache = new ExportPlanCache(10);
+    final List<Invoice> invoices = new ArrayList<Invoice>();
+    invoices.add(new Invoice(1, new Date(), BigDecimal.ONE));
+    final ExcelExporter defaultExporter = new InvoiceExporter(ExportSettings.getDefault()).setExportPlanCache(cache);
+    defaultExporter.addList(defaultExporter.getWorkbook().addSheet("Invoices"), invoices);
+
+    // Same locale, but other translations.
+    final ExportContext exportContext = new DefaultExportContext()
+    {
+      @Override
+      public String getLocalizedString(final String i18nKey)
+      {
+        return "i18n." + i18nKey;
+      }
+    };
+    final ExcelExporter exporter = new InvoiceExporter(ExportSettings.getDefault().withExportContext(exportContext))
+        .setExportPlanCache(cache);
+    final ExportSheet sheet = exporter.getWorkbook().addSheet("Invoices");
+    Assert.assertSame(exportContext, ((XlsContentProvider) sheet.getContentProvider()).getExportContext());
+    exporter.addList(sheet, invoices);
+    Assert.assertEquals(2, cache.getNumberOfPlans());
+    Assert.assertEquals(2, cache.getMisses());
+    Assert.assertEquals("i18n.amount", sheet.getRow(0).getCell(2).getStringCellValue());
+  }
+
+  @Test
+  public void exportDelimited() throws IOException
+  {
+    final ExportContext exportContext = new DefaultExportContext();
+    exportContext.setLocale(Locale.US);
+    final StringWriter writer = new StringWriter();
+    final DelimitedExporter exporter = new DelimitedExporter(exportContext, writer, DelimitedExporter.CSV).setLineSeparator("\n");
+    exporter.putFormat("amount", "#,##0.00;[Red]-#,##0.00").putFormat("count", "0;-0;\"zero\"").putFormat("date", "DD.MM.YYYY hh:mm");
+    exporter.setColumns(new ExportColumn("text", "Text, quoted"), new ExportColumn("amount", "Amount"), new ExportColumn("count", "Count"),
+        new ExportColumn("date", "Date"), new ExportColumn("value", "Value"));
+    final Map<String, Object> row = new HashMap<String, Object>();
+    row.put("text", "Say \"hello\"");
+    row.put("amount", new BigDecimal("-1234.5"));
+    row.put("count", 7);
+    row.put("date", new GregorianCalendar(2014, Calendar.MARCH, 9, 8, 5).getTime());
+    row.put("value", 1.0E7);
+    exporter.addRow(row);
+    exporter.addRow((Object) new HashMap<String, Object>());
+    exporter.addRow("multi\nline", new Formula("SUM(A1:A2)"), null, 0.5f, Double.NaN);
+    exporter.flush();
+    Assert.assertEquals("\"Text, quoted\",Amount,Count,Date,Value\n" //
+        + "\"Say \"\"hello\"\"\",\"-1,234.50\",7,09.03.2014 08:05,10000000\n" //
+        + ",,,,\n" //
+        + "\"multi\nline\",=SUM(A1:A2),,0.5,NaN\n", writer.toString());
+  }
+
+  @Test
+  public void convertDelimitedFormats()
+  {
+    Assert.assertEquals("#,##0.00;-#,##0.00", DelimitedExporter.toNumberPattern("#,##0.00;[Red]-#,##0.00"));
+    Assert.assertEquals("0;-0", DelimitedExporter.toNumberPattern("0;-0;\"zero\""));
+    Assert.assertEquals("0;-0", DelimitedExporter.toNumberPattern("0;-0;0;@"));
+    Assert.assertEquals("0", DelimitedExporter.toNumberPattern("0;"));
+    Assert.assertEquals("0' pcs'", DelimitedExporter.toNumberPattern("0\" pcs\""));
+    Assert.assertEquals("0' ;'", DelimitedExporter.toNumberPattern("0\" ;\""));
+    Assert.assertEquals("dd/MM/yyyy", DelimitedExporter.toDatePattern("DD/MM/YYYY"));
+    Assert.assertEquals("HH:mm:ss.SSS", DelimitedExporter.toDatePattern("hh:mm:ss.000"));
+    Assert.assertEquals("h:mm a", DelimitedExporter.toDatePattern("h:mm AM/PM"));
+    Assert.assertEquals("MM/dd/yyyy", DelimitedExporter.toDatePattern("MM/dd/yyyy"));
+    Assert.assertTrue(DelimitedExporter.isDateFormat("MM/dd/yyyy"));
+    Assert.assertFalse(DelimitedExporter.isDateFormat("[Red]#,##0.00"));
+    Assert.assertFalse(DelimitedExporter.isDateFormat("0\" days\""));
+  }
+
+  @Test
+  public void cacheBeanAccessorPlans()
+  {
+    final BeanAccessorPlan plan = BeanAccessorPlan.getPlan(Invoice.class);
+    Assert.assertSame(plan, BeanAccessorPlan.getPlan(Invoice.class));
+    Assert.assertEquals(3, plan.getAccessors().length);
+    BeanAccessorPlan.clear();
+    Assert.assertNotSame(plan, BeanAccessorPlan.getPlan(Invoice.class));
+  }
+
+  @Test
+  public void exportInParallelMode()
+  {
+    // More entries than chunks pending at once, so the writer has to wait for the workers.
+    final int size = 2 * Runtime.getRuntime().availableProcessors() * ExcelExporter.PARALLEL_CHUNK_SIZE + 1;
+    final Date date = new GregorianCalendar(2014, Calendar.MARCH, 1).getTime();
+    final List<Invoice> invoices = new ArrayList<Invoice>(size);
+    for (int i = 0; i < size; i++) {
+      invoices.add(new Invoice(i, i % 7 == 0 ? null : date, new BigDecimal(i).movePointLeft(2)));
+    }
+    final ExcelExporter sequential = new InvoiceExporter();
+    sequential.addList(sequential.getWorkbook().addSheet("Invoices"), invoices);
+    final ExcelExporter parallel = new InvoiceExporter().setParallelThreshold(1);
+    parallel.addList(parallel.getWorkbook().addSheet("Invoices"), invoices);
+    Assert.assertArrayEquals(sequential.getWorkbook().getAsByteArray(), parallel.getWorkbook().getAsByteArray());
+  }
+
+  @Test
+  public void getPropertyPathValues()
+  {
+    final Map<String, Object> attributes = new HashMap<String, Object>();
+    attributes.put("color", "red");
+    final Project project = new Project(new Customer("ACME"), attributes);
+    final PropertyPath name = new PropertyPath("project.customer.name");
+    Assert.assertEquals("ACME", name.getValue(new Task(project)));
+    // Other bean classes (e. g. proxies) with the same properties.
+    Assert.assertEquals("ACME", name.getValue(new Task(new Project(new Customer("ACME"), null)
+    {
+    })));
+    Assert.assertNull(name.getValue(new Task(new Project(null, attributes))));
+    Assert.assertNull(name.getValue(new Task(null)));
+    Assert.assertNull(name.getValue(null));
+
+    final PropertyPath color = new PropertyPath("project.attributes.color");
+    Assert.assertEquals("red", color.getValue(new Task(project)));
+    Assert.assertNull(color.getValue(new Task(new Project(null, new HashMap<String, Object>()))));
+
+    final PropertyPath missing = new PropertyPath("project.owner.name");
+    for (int i = 0; i < 2; i++) {
+      // The missing getter is looked up (and logged) only once.
+      Assert.assertEquals(PropertyPath.NOT_AVAILABLE, missing.getValue(new Task(project)));
+    }
+    Assert.assertNull(missing.getValue(new Task(null)));
+  }
+
+  private static Map<String, String> getDataFormats(final XlsContentProvider contentProvider)
+  {
+    final Map<String, String> result = new HashMap<String, String>();
+    for (final Map.Entry<Object, CellFormat> entry : contentProvider.getFormats().entrySet()) {
+      final Object key = entry.getKey();
+      final String name = key instanceof ExportColumn ? ((ExportColumn) key).getName() : key instanceof Class< ? > ? ((Class< ? >) key)
+          .getName() : String.valueOf(key);
+      result.put(name, entry.getValue().getDataFormat());
+    }
+    return result;
+  }
+
+  private static class InvoiceExporter extends ExcelExporter
+  {
+    private InvoiceExporter()
+    {
+      super("invoices");
+    }
+
+    private InvoiceExporter(final ExportSettings settings)
+    {
+      super("invoices", WorkbookFormat.XLS, settings);
+    }
+
+    @Override
+    protected List<ExportColumn> onBeforeSettingColumns(final ContentProvider sheetProvider, final List<ExportColumn> columns)
+    {
+      ((XlsContentProvider) sheetProvider).putFormat("number", "0000");
+      return columns;
+    }
+  }
+
+  public static class Task
+  {
+    private final Project project;
+
+    private Task(final Project project)
+    {
+      this.project = project;
+    }
+
+    public Project getProject()
+    {
+      return project;
+    }
+  }
+
+  public static class Project
+  {
+    private final Customer customer;
+
+    private final Map<String, Object> attributes;
+
+    private Project(final Customer customer, final Map<String, Object> attributes)
+    {
+      this.customer = customer;
+      this.attributes = attributes;
+    }
+
+    public Customer getCustomer()
+    {
+      return customer;
+    }
+
+    public Map<String, Object> getAttributes()
+    {
+      return attributes;
+    }
+  }
+
+  public static class Customer
+  {
+    private final String name;
+
+    private Customer(final String name)
+    {
+      this.name = name;
+    }
+
+    public String getName()
+    {
+      return name;
+    }
+  }
+
+  public static class ImportedInvoice
+  {
+    private String name;
+
+    private BigDecimal amount;
+
+    private Date date;
+
+    public String getName()
+    {
+      return name;
+    }
+
+    public void setName(final String name)
+    {
+      this.name = name;
+    }
+
+    public BigDecimal getAmount()
+    {
+      return amount;
+    }
+
+    public void setAmount(final BigDecimal amount)
+    {
+      this.amount = amount;
+    }
+
+    public Date getDate()
+    {
+      return date;
+    }
+
+    public void setDate(final Date date)
+    {
+      this.date = date;
+    }
+  }
+
+  private static class Invoice
+  {
+    @PropertyInfo(i18nKey = "number")
+    private final Integer number;
+
+    @PropertyInfo(i18nKey = "date", type = PropertyType.DATE)
+    private final Date date;
+
+    @PropertyInfo(i18nKey = "amount", type = PropertyType.CURRENCY)
+    private final BigDecimal amount;
+
+    private Invoice(final Integer number, final Date date, final BigDecimal amount)
+    {
+      this.number = number;
+      this.date = date;
+      this.amount = amount;
+    }
+  }
 }